@@ -0,0 +1,181 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.resources.api.Archive;
+import be.nabu.libs.resources.api.ArchiveResolver;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.TimestampedResource;
+
+/**
+ * Keeps opened archives around so nested archive uris don't have to reparse the archive on every resolve.
+ * An archive is only reused as long as the last modified and size of its source have not changed, sources that expose neither are never cached.
+ *
+ * The cache owns the archives it hands out: the same instance is shared by every caller and it is closed when it is evicted, replaced or cleared.
+ * When an archive is evicted or replaced, the archives nested in it are evicted as well.
+ * This means it should only be enabled for archive implementations that can be used concurrently and with a size that covers the archives in active use.
+ */
+public class ArchiveCache {
+
+	private int maxSize;
+
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	private Map<String, CachedArchive> archives = new LinkedHashMap<String, CachedArchive>(16, 0.75f, true);
+
+	public ArchiveCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Archive<Resource> getArchive(URI uri, Principal principal, Resource source, ArchiveResolver resolver) {
+		Date lastModified = source instanceof TimestampedResource ? ((TimestampedResource) source).getLastModified() : null;
+		Long size = source instanceof FiniteResource ? ((FiniteResource) source).getSize() : null;
+		// we can not detect changes, don't cache
+		if (maxSize <= 0 || (lastModified == null && size == null)) {
+			Archive<Resource> archive = resolver.newInstance();
+			archive.setSource(source);
+			return archive;
+		}
+		uri = uri.normalize();
+		String key = uri.toString() + (principal == null ? "" : "#" + principal.getName());
+		List<CachedArchive> evicted = new ArrayList<CachedArchive>();
+		try {
+			synchronized(archives) {
+				CachedArchive cached = archives.get(key);
+				if (cached != null) {
+					if (cached.matches(lastModified, size)) {
+						hits.incrementAndGet();
+						return cached.archive;
+					}
+					evict(key, evicted);
+				}
+				misses.incrementAndGet();
+				Archive<Resource> archive = resolver.newInstance();
+				archive.setSource(source);
+				archives.put(key, new CachedArchive(archive, uri, principal, lastModified, size));
+				while (archives.size() > maxSize) {
+					evict(archives.keySet().iterator().next(), evicted);
+				}
+				return archive;
+			}
+		}
+		finally {
+			// closing can be slow, don't block the other lookups
+			close(evicted);
+		}
+	}
+
+	// removes the archive and everything that was opened from it
+	private void evict(String key, List<CachedArchive> evicted) {
+		CachedArchive removed = archives.remove(key);
+		if (removed != null) {
+			evicted.add(removed);
+			Iterator<CachedArchive> iterator = archives.values().iterator();
+			while (iterator.hasNext()) {
+				CachedArchive next = iterator.next();
+				if (next.isNestedIn(removed)) {
+					evicted.add(next);
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private static void close(List<CachedArchive> archives) {
+		for (CachedArchive archive : archives) {
+			try {
+				archive.archive.close();
+			}
+			catch (IOException e) {
+				// ignore, the archive is no longer in use by the cache
+			}
+		}
+	}
+
+	public void clear() {
+		List<CachedArchive> removed;
+		synchronized(archives) {
+			removed = new ArrayList<CachedArchive>(archives.values());
+			archives.clear();
+		}
+		close(removed);
+	}
+
+	public int size() {
+		synchronized(archives) {
+			return archives.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static class CachedArchive {
+		private Archive<Resource> archive;
+		private URI uri;
+		private String principal;
+		private Date lastModified;
+		private Long size;
+
+		public CachedArchive(Archive<Resource> archive, URI uri, Principal principal, Date lastModified, Long size) {
+			this.archive = archive;
+			this.uri = uri;
+			this.principal = principal == null ? null : principal.getName();
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		public boolean matches(Date lastModified, Long size) {
+			return (this.lastModified == null ? lastModified == null : this.lastModified.equals(lastModified))
+				&& (this.size == null ? size == null : this.size.equals(size));
+		}
+
+		// nested archives are resolved with the same uri apart from a longer path
+		public boolean isNestedIn(CachedArchive parent) {
+			return Objects.equals(uri.getScheme(), parent.uri.getScheme())
+				&& Objects.equals(uri.getAuthority(), parent.uri.getAuthority())
+				&& Objects.equals(uri.getQuery(), parent.uri.getQuery())
+				&& Objects.equals(uri.getFragment(), parent.uri.getFragment())
+				&& Objects.equals(principal, parent.principal)
+				&& uri.getPath() != null && parent.uri.getPath() != null
+				&& uri.getPath().startsWith(parent.uri.getPath() + "/");
+		}
+	}
+}
@@ -20,6 +20,7 @@ package be.nabu.libs.resources;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,19 +33,30 @@ import be.nabu.libs.resources.api.Resource;
 
 public class ArchiveFactory {
 
-	private static ArchiveFactory instance;
+	private static volatile ArchiveFactory instance;
 	
 	public static ArchiveFactory getInstance() {
-		if (instance == null)
-			instance = new ArchiveFactory();
+		if (instance == null) {
+			synchronized(ArchiveFactory.class) {
+				if (instance == null) {
+					instance = new ArchiveFactory();
+				}
+			}
+		}
 		return instance;
 	}
 	
-	private Map<String, ArchiveResolver> resolvers = new LinkedHashMap<String, ArchiveResolver>();
+	// copy-on-write registry, lookups read the current immutable snapshot without locking
+	private volatile Map<String, ArchiveResolver> resolvers = Collections.emptyMap();
 	
 	public void setArchiveResolver(String contentType, ArchiveResolver resolver, boolean overrideExisting) {
-		if (overrideExisting || !resolvers.containsKey(contentType))
-			resolvers.put(contentType, resolver);
+		synchronized(this) {
+			if (overrideExisting || !resolvers.containsKey(contentType)) {
+				Map<String, ArchiveResolver> resolvers = new LinkedHashMap<String, ArchiveResolver>(this.resolvers);
+				resolvers.put(contentType, resolver);
+				this.resolvers = Collections.unmodifiableMap(resolvers);
+			}
+		}
 	}
 	
 	public void addArchiveResolver(ArchiveResolver resolver) {
@@ -52,9 +64,19 @@ public class ArchiveFactory {
 			setArchiveResolver(contentType, resolver, false);
 	}
 	
+	// like the add method, an existing resolver for a content type is not overridden
+	private static void register(Map<String, ArchiveResolver> resolvers, ArchiveResolver resolver) {
+		for (String contentType : resolver.getSupportedContentTypes()) {
+			resolvers.putIfAbsent(contentType, resolver);
+		}
+	}
+	
 	public void removeArchiveResolver(ArchiveResolver resolver) {
-		for (String contentType : resolvers.keySet())
-			resolvers.remove(contentType);
+		synchronized(this) {
+			Map<String, ArchiveResolver> resolvers = new LinkedHashMap<String, ArchiveResolver>(this.resolvers);
+			resolvers.values().removeIf(registered -> registered == resolver);
+			this.resolvers = Collections.unmodifiableMap(resolvers);
+		}
 	}
 	
 	public ArchiveResolver getResolver(String contentType) {
@@ -67,44 +89,54 @@ public class ArchiveFactory {
 	
 	@SuppressWarnings("unchecked")
 	private Map<String, ArchiveResolver> getResolvers() {
-		if (resolvers.isEmpty()) {
-			try {
-				// let's try this with custom service loading based on a configuration
-				Class<?> clazz = getClass().getClassLoader().loadClass("be.nabu.utils.services.ServiceLoader");
-				Method declaredMethod = clazz.getDeclaredMethod("load", Class.class);
-				for (ArchiveResolver resolver : (List<ArchiveResolver>) declaredMethod.invoke(null, ArchiveResolver.class)) {
-					addArchiveResolver(resolver);
-				}
-			}
-			catch (ClassNotFoundException e) {
-				// ignore, the framework is not present
-			}
-			catch (NoSuchMethodException e) {
-				// corrupt framework?
-				throw new RuntimeException(e);
-			}
-			catch (SecurityException e) {
-				throw new RuntimeException(e);
-			}
-			catch (IllegalAccessException e) {
-				// ignore
-			}
-			catch (InvocationTargetException e) {
-				// ignore
-			}
-			if (resolvers.isEmpty()) {
-				ServiceLoader<ArchiveResolver> serviceLoader = ServiceLoader.load(ArchiveResolver.class);
-				for (ArchiveResolver resolver : serviceLoader) {
-					addArchiveResolver(resolver);
+		Map<String, ArchiveResolver> current = resolvers;
+		if (current.isEmpty()) {
+			synchronized(this) {
+				if (this.resolvers.isEmpty()) {
+					// fill a local map and publish it once, lock-free readers should never see a partially loaded registry
+					Map<String, ArchiveResolver> resolvers = new LinkedHashMap<String, ArchiveResolver>();
+					try {
+						// let's try this with custom service loading based on a configuration
+						Class<?> clazz = getClass().getClassLoader().loadClass("be.nabu.utils.services.ServiceLoader");
+						Method declaredMethod = clazz.getDeclaredMethod("load", Class.class);
+						for (ArchiveResolver resolver : (List<ArchiveResolver>) declaredMethod.invoke(null, ArchiveResolver.class)) {
+							register(resolvers, resolver);
+						}
+					}
+					catch (ClassNotFoundException e) {
+						// ignore, the framework is not present
+					}
+					catch (NoSuchMethodException e) {
+						// corrupt framework?
+						throw new RuntimeException(e);
+					}
+					catch (SecurityException e) {
+						throw new RuntimeException(e);
+					}
+					catch (IllegalAccessException e) {
+						// ignore
+					}
+					catch (InvocationTargetException e) {
+						// ignore
+					}
+					if (resolvers.isEmpty()) {
+						ServiceLoader<ArchiveResolver> serviceLoader = ServiceLoader.load(ArchiveResolver.class);
+						for (ArchiveResolver resolver : serviceLoader) {
+							register(resolvers, resolver);
+						}
+					}
+					this.resolvers = Collections.unmodifiableMap(resolvers);
 				}
+				current = this.resolvers;
 			}
 		}
-		return resolvers;
+		return current;
 	}
 	
 	public <T extends Resource> Archive<T> newArchive(Resource resource) throws IOException {
-		if (getResolvers().containsKey(resource.getContentType())) {
-			Archive<T> archive = resolvers.get(resource.getContentType()).newInstance();
+		ArchiveResolver resolver = getResolvers().get(resource.getContentType());
+		if (resolver != null) {
+			Archive<T> archive = resolver.newInstance();
 			archive.setSource(resource);
 			return archive;
 		}
@@ -0,0 +1,271 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A pool of direct buffers with a global budget, shared by OffHeapContainers so the total amount of memory used for buffering is bounded.
+ * When the budget is exhausted, a container waits for buffers to be returned (applying backpressure to whoever is filling it) for at most the configured time.
+ * If no buffer becomes available in time, the container spills to disk instead. Waits are always bounded to prevent containers from waiting on one another indefinitely.
+ * Returned buffers are kept for reuse, they are only released when the pool is closed.
+ * Containers should be closed to return their buffers, the buffers of containers that are garbage collected without being closed are reclaimed but only once the garbage collector has noticed.
+ */
+public class BufferPool {
+
+	private int segmentSize;
+	private long budget, maxWait;
+	private Deque<java.nio.ByteBuffer> free = new ArrayDeque<java.nio.ByteBuffer>();
+	private boolean closed;
+	// metrics
+	private long buffered, peak, spills, waits, waitTime, reclaimed;
+
+	private static final long RECLAIM_INTERVAL = 100;
+	// containers that are garbage collected without being closed end up in the queue
+	private ReferenceQueue<Object> unreachable = new ReferenceQueue<Object>();
+	// the trackers must remain reachable themselves until they are processed
+	private Set<Tracker> tracked = new HashSet<Tracker>();
+
+	/**
+	 * @param budget the maximum amount of bytes that are buffered in memory at any time
+	 * @param segmentSize the size of the individual buffers
+	 * @param maxWait the amount of milliseconds to wait for a buffer when the budget is exhausted, 0 means spill immediately
+	 */
+	public BufferPool(long budget, int segmentSize, long maxWait) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("The segment size must be positive");
+		}
+		this.budget = budget;
+		this.segmentSize = segmentSize;
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * A cleared buffer or null if the budget remained exhausted and the caller should spill.
+	 * This may wait so it should not be called while holding locks that others need.
+	 */
+	public java.nio.ByteBuffer acquire() throws IOException {
+		return acquire(maxWait);
+	}
+
+	/**
+	 * A cleared buffer or null immediately if the budget is exhausted and the caller should spill
+	 */
+	public java.nio.ByteBuffer tryAcquire() throws IOException {
+		return acquire(0);
+	}
+
+	private java.nio.ByteBuffer acquire(long maxWait) throws IOException {
+		long started = System.currentTimeMillis();
+		boolean waited = false;
+		try {
+			while (true) {
+				// closing the reclaimed resources takes their locks, this is done before taking ours so the lock order is the same as when they acquire buffers
+				reclaim();
+				synchronized(this) {
+					if (closed) {
+						throw new IOException("The buffer pool is closed");
+					}
+					if (buffered + segmentSize <= budget) {
+						buffered += segmentSize;
+						peak = Math.max(peak, buffered);
+						java.nio.ByteBuffer buffer = free.poll();
+						if (buffer == null) {
+							buffer = java.nio.ByteBuffer.allocateDirect(segmentSize);
+						}
+						buffer.clear();
+						return buffer;
+					}
+					long remaining = maxWait - (System.currentTimeMillis() - started);
+					if (maxWait <= 0 || segmentSize > budget || remaining <= 0) {
+						spills++;
+						return null;
+					}
+					if (!waited) {
+						waits++;
+						waited = true;
+					}
+					// wake up regularly to reclaim the buffers of containers that were garbage collected
+					wait(Math.min(remaining, RECLAIM_INTERVAL));
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a buffer");
+		}
+		finally {
+			if (waited) {
+				synchronized(this) {
+					waitTime += System.currentTimeMillis() - started;
+				}
+			}
+		}
+	}
+
+	public synchronized void release(java.nio.ByteBuffer buffer) {
+		buffered -= segmentSize;
+		if (closed) {
+			OffHeapContainer.free(buffer);
+		}
+		else {
+			free.push(buffer);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Tracks the owner of some buffers, if the owner is garbage collected without being closed, the resource is closed to return the buffers
+	 */
+	synchronized Object track(Object owner, Closeable resource) {
+		Tracker tracker = new Tracker(owner, unreachable, resource);
+		tracked.add(tracker);
+		return tracker;
+	}
+
+	synchronized void untrack(Object tracker) {
+		tracked.remove(tracker);
+		((Tracker) tracker).clear();
+	}
+
+	/**
+	 * Returns the buffers of the owners that were garbage collected without being closed.
+	 * This is done automatically when buffers are requested, but it depends on the garbage collector running.
+	 * @return the amount of owners that were reclaimed
+	 */
+	public int reclaim() {
+		List<Tracker> unreachable = new ArrayList<Tracker>();
+		synchronized(this) {
+			Reference<?> reference;
+			while ((reference = this.unreachable.poll()) != null) {
+				if (tracked.remove(reference)) {
+					unreachable.add((Tracker) reference);
+				}
+			}
+			reclaimed += unreachable.size();
+		}
+		// the resources are closed without holding our lock, closing them takes their own locks
+		for (Tracker tracker : unreachable) {
+			try {
+				tracker.resource.close();
+			}
+			catch (IOException e) {
+				// the buffers are returned before anything else can fail
+			}
+		}
+		return unreachable.size();
+	}
+
+	private static class Tracker extends PhantomReference<Object> {
+		private Closeable resource;
+
+		public Tracker(Object owner, ReferenceQueue<Object> queue, Closeable resource) {
+			super(owner, queue);
+			this.resource = resource;
+		}
+	}
+
+	/**
+	 * Releases the pooled buffers, buffers that are still in use are released when they are returned
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (java.nio.ByteBuffer buffer : free) {
+			OffHeapContainer.free(buffer);
+		}
+		free.clear();
+		notifyAll();
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * The amount of bytes currently in use
+	 */
+	public synchronized long getBuffered() {
+		return buffered;
+	}
+
+	/**
+	 * The highest amount of bytes that were in use at the same time
+	 */
+	public synchronized long getPeak() {
+		return peak;
+	}
+
+	/**
+	 * The amount of bytes that are allocated but not in use, they are kept for reuse
+	 */
+	public synchronized long getPooled() {
+		return (long) free.size() * segmentSize;
+	}
+
+	/**
+	 * The amount of times a buffer was refused and the segment was spilled to disk instead
+	 */
+	public synchronized long getSpills() {
+		return spills;
+	}
+
+	/**
+	 * The amount of times a request had to wait for a buffer
+	 */
+	public synchronized long getWaits() {
+		return waits;
+	}
+
+	/**
+	 * The total amount of milliseconds spent waiting for buffers
+	 */
+	public synchronized long getWaitTime() {
+		return waitTime;
+	}
+
+	/**
+	 * The amount of owners whose buffers were reclaimed after they were garbage collected without being closed
+	 */
+	public synchronized long getReclaimed() {
+		return reclaimed;
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool [buffered=" + getBuffered() + "/" + budget + ", peak=" + getPeak() + ", pooled=" + getPooled() + ", spills=" + getSpills() + ", waits=" + getWaits() + ", waitTime=" + getWaitTime() + "ms, reclaimed=" + getReclaimed() + "]";
+	}
+}
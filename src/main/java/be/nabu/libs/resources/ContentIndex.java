@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import be.nabu.libs.resources.api.ContentTrackingResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Indexes the files in a tree by the hash of their content, this allows you to find duplicates or check whether content already exists somewhere.
+ * If a resource tracks its own hash (ContentTrackingResource), that hash is used as is, otherwise the content is read and hashed with the configured algorithm (hex encoded).
+ * Resources from different backends are only recognized as identical if they use the same algorithm and encoding.
+ */
+public class ContentIndex {
+
+	public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+	private String algorithm;
+	// the paths are sorted so the index is deterministic
+	private Map<String, TreeSet<String>> paths = new HashMap<String, TreeSet<String>>();
+	private Map<String, String> hashes = new HashMap<String, String>();
+
+	public ContentIndex() {
+		this(DEFAULT_ALGORITHM);
+	}
+
+	public ContentIndex(String algorithm) {
+		// fail early if the algorithm is not available
+		newDigest(algorithm);
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * Adds all the files in the container (recursively) to the index, the paths are relative to the container
+	 */
+	public void index(ResourceContainer<?> container) throws IOException {
+		index(container, null);
+	}
+
+	private void index(ResourceContainer<?> container, String path) throws IOException {
+		for (Resource child : container) {
+			String childPath = path == null ? child.getName() : path + "/" + child.getName();
+			if (child instanceof ResourceContainer) {
+				index((ResourceContainer<?>) child, childPath);
+			}
+			else if (child instanceof ReadableResource) {
+				put(childPath, hash(child));
+			}
+		}
+	}
+
+	public synchronized void put(String path, String hash) {
+		remove(path);
+		hashes.put(path, hash);
+		TreeSet<String> set = paths.get(hash);
+		if (set == null) {
+			set = new TreeSet<String>();
+			paths.put(hash, set);
+		}
+		set.add(path);
+	}
+
+	public synchronized void remove(String path) {
+		String hash = hashes.remove(path);
+		if (hash != null) {
+			TreeSet<String> set = paths.get(hash);
+			set.remove(path);
+			if (set.isEmpty()) {
+				paths.remove(hash);
+			}
+		}
+	}
+
+	public synchronized String getHash(String path) {
+		return hashes.get(path);
+	}
+
+	public synchronized boolean contains(String hash) {
+		return paths.containsKey(hash);
+	}
+
+	public synchronized List<String> getPaths(String hash) {
+		TreeSet<String> set = paths.get(hash);
+		return set == null ? new ArrayList<String>() : new ArrayList<String>(set);
+	}
+
+	/**
+	 * All the hashes that occur in more than one path
+	 */
+	public synchronized Map<String, List<String>> getDuplicates() {
+		Map<String, List<String>> duplicates = new TreeMap<String, List<String>>();
+		for (Map.Entry<String, TreeSet<String>> entry : paths.entrySet()) {
+			if (entry.getValue().size() > 1) {
+				duplicates.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+			}
+		}
+		return duplicates;
+	}
+
+	public synchronized int size() {
+		return hashes.size();
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * The tracked hash if there is one, otherwise the content is hashed
+	 */
+	public String hash(Resource resource) throws IOException {
+		String hash = getTrackedHash(resource);
+		if (hash == null) {
+			hash = hash((ReadableResource) resource, algorithm);
+		}
+		return hash;
+	}
+
+	/**
+	 * The hash as tracked by the backend or null if it does not track one, this never reads the content
+	 */
+	public static String getTrackedHash(Resource resource) {
+		return resource instanceof ContentTrackingResource ? ((ContentTrackingResource) resource).getHash() : null;
+	}
+
+	public static String hash(ReadableResource resource, String algorithm) throws IOException {
+		final MessageDigest digest = newDigest(algorithm);
+		ReadableContainer<ByteBuffer> readable = resource.getReadable();
+		try {
+			ByteBuffer buffer = IOUtils.newByteBuffer(8192, true);
+			byte [] bytes = new byte[8192];
+			// stop at the end (-1) but also when nothing is returned (0), we don't want to spin on a container that has no more data for us
+			while (readable.read(buffer) > 0) {
+				int read;
+				while ((read = buffer.read(bytes)) > 0) {
+					digest.update(bytes, 0, read);
+				}
+			}
+		}
+		finally {
+			readable.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unknown hash algorithm: " + algorithm, e);
+		}
+	}
+
+	static String toHex(byte [] bytes) {
+		char [] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,484 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import be.nabu.libs.resources.api.ContentTrackingResource;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.libs.resources.api.features.ContentAddressableContainer;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * A container that stores identical content only once.
+ * The tree itself (directories, names and hashes) is kept in memory, the content is stored in a separate blob container using the hash as name.
+ * 
+ * Content is hashed while it is written: small content is buffered in memory and never written to the blob container if the hash already exists.
+ * Larger content is spilled to a temporary blob which is renamed or discarded once the hash is known.
+ * A blob is deleted when nothing refers to it anymore, so the blob container should be dedicated to one store.
+ * 
+ * The tree can be persisted with getManifest() and rebuilt on the same blob container with restore().
+ */
+public class DeduplicatingContainer implements ContentAddressableContainer<Resource> {
+
+	private BlobStore store;
+	private DeduplicatingContainer parent;
+	private String name;
+	private Map<String, Resource> children = new HashMap<String, Resource>();
+
+	/**
+	 * Blobs that already exist in the container can be linked immediately
+	 */
+	public DeduplicatingContainer(ManageableContainer<?> blobs) {
+		this(blobs, ContentIndex.DEFAULT_ALGORITHM, 1024 * 1024);
+	}
+
+	/**
+	 * @param algorithm the hash algorithm, this should match the hashes of other backends you want to copy from without reading the content
+	 * @param spillThreshold content larger than this amount of bytes is written to a temporary blob while it is being hashed
+	 */
+	public DeduplicatingContainer(ManageableContainer<?> blobs, String algorithm, long spillThreshold) {
+		this(new BlobStore(blobs, algorithm, spillThreshold), null, null);
+	}
+
+	private DeduplicatingContainer(BlobStore store, DeduplicatingContainer parent, String name) {
+		this.store = store;
+		this.parent = parent;
+		this.name = name;
+	}
+
+	@Override
+	public String getContentType() {
+		return Resource.CONTENT_TYPE_DIRECTORY;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return parent;
+	}
+
+	@Override
+	public Iterator<Resource> iterator() {
+		synchronized(children) {
+			return new ArrayList<Resource>(children.values()).iterator();
+		}
+	}
+
+	@Override
+	public Resource getChild(String name) {
+		synchronized(children) {
+			return children.get(name);
+		}
+	}
+
+	@Override
+	public Resource create(String name, String contentType) throws IOException {
+		Resource child = Resource.CONTENT_TYPE_DIRECTORY.equals(contentType)
+			? new DeduplicatingContainer(store, this, name)
+			: new DeduplicatedResource(this, name, contentType);
+		replace(name, child);
+		return child;
+	}
+
+	@Override
+	public void delete(String name) throws IOException {
+		replace(name, null);
+	}
+
+	@Override
+	public boolean hasContent(String hash) {
+		return store.hasContent(hash);
+	}
+
+	/**
+	 * Links the content with the content type guessed from the name, the content must exist
+	 */
+	public Resource link(String name, String hash) throws IOException {
+		Resource child = link(name, ResourceExtractor.getContentType(name), hash);
+		if (child == null) {
+			throw new IOException("No content found for hash: " + hash);
+		}
+		return child;
+	}
+
+	@Override
+	public Resource link(String name, String contentType, String hash) throws IOException {
+		// checking and acquiring in one step, the last reference may be released in the meantime
+		if (!store.tryAcquire(hash)) {
+			return null;
+		}
+		DeduplicatedResource child = new DeduplicatedResource(this, name, contentType);
+		child.setContent(hash, store.getSize(hash));
+		replace(name, child);
+		return child;
+	}
+
+	private void replace(String name, Resource child) throws IOException {
+		Resource existing;
+		synchronized(children) {
+			existing = child == null ? children.remove(name) : children.put(name, child);
+		}
+		if (existing != null) {
+			release(existing);
+		}
+	}
+
+	private static void release(Resource resource) throws IOException {
+		if (resource instanceof DeduplicatingContainer) {
+			for (Resource child : (DeduplicatingContainer) resource) {
+				release(child);
+			}
+		}
+		else {
+			((DeduplicatedResource) resource).setContent(null, 0);
+		}
+	}
+
+	/**
+	 * The hash of every file in this container (recursively), sorted on the relative path
+	 */
+	public Map<String, String> getManifest() {
+		Map<String, String> manifest = new TreeMap<String, String>();
+		getManifest(this, null, manifest);
+		return manifest;
+	}
+
+	private static void getManifest(DeduplicatingContainer container, String path, Map<String, String> manifest) {
+		for (Resource child : container) {
+			String childPath = path == null ? child.getName() : path + "/" + child.getName();
+			if (child instanceof DeduplicatingContainer) {
+				getManifest((DeduplicatingContainer) child, childPath, manifest);
+			}
+			else if (((DeduplicatedResource) child).getHash() != null) {
+				manifest.put(childPath, ((DeduplicatedResource) child).getHash());
+			}
+		}
+	}
+
+	/**
+	 * Links all the paths in the manifest to their content, the blobs must exist
+	 */
+	public void restore(Map<String, String> manifest) throws IOException {
+		for (Map.Entry<String, String> entry : manifest.entrySet()) {
+			int index = entry.getKey().lastIndexOf('/');
+			DeduplicatingContainer target = index < 0 ? this : (DeduplicatingContainer) ResourceUtils.mkdirs(this, entry.getKey().substring(0, index));
+			// the manifest does not contain the content type
+			target.link(entry.getKey().substring(index + 1), entry.getValue());
+		}
+	}
+
+	/**
+	 * The amount of distinct blobs in the store
+	 */
+	public int getBlobs() {
+		return store.getBlobs();
+	}
+
+	private static class BlobStore {
+		private ManageableContainer<?> blobs;
+		private String algorithm;
+		private long spillThreshold;
+		// blobs that existed before the store was created have no references but can be linked
+		private Map<String, Integer> references = new HashMap<String, Integer>();
+		// hashes that are being stored outside of the lock
+		private Set<String> pending = new HashSet<String>();
+
+		public BlobStore(ManageableContainer<?> blobs, String algorithm, long spillThreshold) {
+			// fail early if the algorithm is not available
+			ContentIndex.newDigest(algorithm);
+			this.blobs = blobs;
+			this.algorithm = algorithm;
+			this.spillThreshold = spillThreshold;
+			for (Resource blob : blobs) {
+				// leftover temporary blobs are ignored
+				if (!blob.getName().startsWith(".")) {
+					references.put(blob.getName(), 0);
+				}
+			}
+		}
+
+		public synchronized boolean hasContent(String hash) {
+			return references.containsKey(hash);
+		}
+
+		public synchronized int getBlobs() {
+			return references.size();
+		}
+
+		public synchronized boolean tryAcquire(String hash) {
+			Integer amount = references.get(hash);
+			if (amount == null) {
+				return false;
+			}
+			references.put(hash, amount + 1);
+			return true;
+		}
+
+		public synchronized void release(String hash) throws IOException {
+			Integer amount = references.get(hash);
+			if (amount != null) {
+				if (amount <= 1) {
+					references.remove(hash);
+					blobs.delete(hash);
+				}
+				else {
+					references.put(hash, amount - 1);
+				}
+			}
+		}
+
+		public long getSize(String hash) {
+			Resource blob = blobs.getChild(hash);
+			return blob instanceof FiniteResource ? ((FiniteResource) blob).getSize() : -1;
+		}
+
+		public Resource createTemporary() throws IOException {
+			return blobs.create("." + UUID.randomUUID().toString(), "application/octet-stream");
+		}
+
+		/**
+		 * Stores the content under its hash unless it already exists, the temporary blob (if any) is either renamed or deleted
+		 */
+		public void commit(String hash, ByteArrayOutputStream content, Resource temporary) throws IOException {
+			if (reserve(hash)) {
+				if (temporary != null) {
+					blobs.delete(temporary.getName());
+				}
+				return;
+			}
+			// the new content is written and renamed outside of the lock so other writes are not blocked, the rename may well be a copy
+			try {
+				if (temporary == null) {
+					temporary = createTemporary();
+					OutputStream output = IOUtils.toOutputStream(((WritableResource) temporary).getWritable());
+					try {
+						content.writeTo(output);
+					}
+					finally {
+						output.close();
+					}
+				}
+				ResourceUtils.rename(temporary, hash);
+			}
+			catch (IOException e) {
+				if (temporary != null && blobs.getChild(temporary.getName()) != null) {
+					try {
+						blobs.delete(temporary.getName());
+					}
+					catch (IOException f) {
+						// ignore, leftover temporary blobs are skipped
+					}
+				}
+				synchronized(this) {
+					pending.remove(hash);
+					notifyAll();
+				}
+				throw e;
+			}
+			synchronized(this) {
+				pending.remove(hash);
+				references.put(hash, 1);
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Acquires the hash if it is already stored, otherwise it is marked as pending and the caller has to store it.
+		 * If someone else is already storing the same hash, we wait for them so only one of the files ends up as the blob.
+		 */
+		private synchronized boolean reserve(String hash) throws IOException {
+			while (pending.contains(hash)) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the content to be stored");
+				}
+			}
+			if (tryAcquire(hash)) {
+				return true;
+			}
+			pending.add(hash);
+			return false;
+		}
+
+		public ReadableContainer<ByteBuffer> getReadable(String hash) throws IOException {
+			Resource blob = blobs.getChild(hash);
+			if (blob == null) {
+				throw new IOException("No content found for hash: " + hash);
+			}
+			return ((ReadableResource) blob).getReadable();
+		}
+	}
+
+	public static class DeduplicatedResource implements ReadableResource, WritableResource, ContentTrackingResource, FiniteResource, TimestampedResource {
+		private DeduplicatingContainer parent;
+		private String name, contentType;
+		private String hash;
+		private long size;
+		private Date lastModified = new Date();
+
+		private DeduplicatedResource(DeduplicatingContainer parent, String name, String contentType) {
+			this.parent = parent;
+			this.name = name;
+			this.contentType = contentType;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return parent;
+		}
+
+		@Override
+		public synchronized String getHash() {
+			return hash;
+		}
+
+		@Override
+		public synchronized long getSize() {
+			return size;
+		}
+
+		@Override
+		public synchronized Date getLastModified() {
+			return lastModified;
+		}
+
+		private void setContent(String hash, long size) throws IOException {
+			String previous;
+			synchronized(this) {
+				previous = this.hash;
+				this.hash = hash;
+				this.size = size;
+				this.lastModified = new Date();
+			}
+			if (previous != null) {
+				parent.store.release(previous);
+			}
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			String hash = getHash();
+			return hash == null ? IOUtils.wrap(new byte[0], true) : parent.store.getReadable(hash);
+		}
+
+		@Override
+		public WritableContainer<ByteBuffer> getWritable() throws IOException {
+			return new DeduplicatingWritableContainer(this);
+		}
+	}
+
+	private static class DeduplicatingWritableContainer implements WritableContainer<ByteBuffer> {
+		private DeduplicatedResource resource;
+		private BlobStore store;
+		private MessageDigest digest;
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private Resource temporary;
+		private OutputStream spill;
+		private byte [] bytes = new byte[8192];
+		private long size;
+		private boolean closed;
+
+		public DeduplicatingWritableContainer(DeduplicatedResource resource) {
+			this.resource = resource;
+			this.store = resource.parent.store;
+			this.digest = ContentIndex.newDigest(store.algorithm);
+		}
+
+		@Override
+		public long write(ByteBuffer buffer) throws IOException {
+			if (closed) {
+				throw new IOException("The container is closed");
+			}
+			long total = 0;
+			int read;
+			while (buffer.remainingData() > 0 && (read = buffer.read(bytes)) > 0) {
+				digest.update(bytes, 0, read);
+				size += read;
+				total += read;
+				if (spill == null && size > store.spillThreshold) {
+					temporary = store.createTemporary();
+					spill = IOUtils.toOutputStream(((WritableResource) temporary).getWritable());
+					memory.writeTo(spill);
+					memory = null;
+				}
+				(spill == null ? memory : spill).write(bytes, 0, read);
+			}
+			return total;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (spill != null) {
+				spill.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				if (spill != null) {
+					spill.close();
+				}
+				String hash = ContentIndex.toHex(digest.digest());
+				store.commit(hash, memory, temporary);
+				resource.setContent(hash, size);
+			}
+		}
+	}
+}
@@ -20,33 +20,50 @@ package be.nabu.libs.resources;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.io.api.Container;
 import be.nabu.utils.io.api.DuplicatableContainer;
 import be.nabu.utils.io.api.MarkableContainer;
 import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.io.buffers.bytes.DynamicByteBuffer;
-import be.nabu.utils.io.containers.ReadableContainerDuplicator;
 
 /**
- * This "dynamic" resource takes a readable container as original content
- * If you first request a readable, you get the original but everything you read is duplicated in memory
- * The next you get a readable, you will get the memory duplicate
- * Requesting the readable again will also close the original one though
+ * This "dynamic" resource takes a readable container as original content and allows it to be read any number of times.
+ * Everything that is read from the original is duplicated in the backend, by default in memory.
+ * Any number of readers can be started at any time, even concurrently: each reader replays the duplicated data and when it catches up, it reads the next part of the original for everyone.
+ * This means multiple consumers can process the same stream in parallel without waiting for it to be fully buffered, a reader that catches up simply blocks until the next part is read.
+ * If the resource should close the original, it is closed once it is fully read or when the resource is closed.
+ * By default the duplicate is kept on the heap, pass an OffHeapContainer as backend to keep large content in direct memory and a memory mapped file instead
  */
 public class DynamicResource implements ReadableResource, Closeable, TimestampedResource {
 
+	private static final int CHUNK_SIZE = 16384;
+
 	private ReadableContainer<ByteBuffer> originalContent;
 	private String contentType;
 	private String name;
 	private Container<ByteBuffer> content;
-	private boolean alreadyRequested = false;
 	private boolean shouldClose = false;
-	private Date lastModified;
+	private volatile Date lastModified;
+	// guards the original content, only one reader at a time pulls new data
+	private Object originalLock = new Object();
+	// guards the backend, it is not necessarily safe to write to it and read its duplicates at the same time
+	// readers only share the data so they can read in parallel, the off heap backend guards itself and does not need this at all
+	private ReadWriteLock contentLock = new ReentrantReadWriteLock();
+	private boolean lockContent;
+	// the amount of bytes that have been duplicated in the backend
+	private volatile long available;
+	private volatile boolean finished;
+	// once the backend is inconsistent, no one can read from it anymore
+	private volatile IOException failure;
 	
 	@SuppressWarnings("unchecked")
 	public <T extends DuplicatableContainer<ByteBuffer, ? extends ReadableContainer<ByteBuffer>> & Container<ByteBuffer>> DynamicResource(ReadableContainer<ByteBuffer> originalContent, T backend, String name, String contentType, boolean shouldClose) {
@@ -54,21 +71,14 @@ public class DynamicResource implements ReadableResource, Closeable, Timestamped
 		this.contentType = contentType;
 		this.shouldClose = shouldClose;
 		this.content = backend;
+		this.lockContent = !(backend instanceof OffHeapContainer);
 		if (backend instanceof MarkableContainer)
 			((MarkableContainer<ByteBuffer>) backend).mark();
-		this.originalContent = new ReadableContainerDuplicator<ByteBuffer>(originalContent, this.content);
+		this.originalContent = originalContent;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public DynamicResource(ReadableContainer<ByteBuffer> originalContent, String name, String contentType, boolean shouldClose) {
 		this(originalContent, new DynamicByteBuffer(), name, contentType, shouldClose);
-		this.name = name;
-		this.contentType = contentType;
-		this.shouldClose = shouldClose;
-		DynamicByteBuffer buffer = new DynamicByteBuffer();
-		buffer.mark();
-		this.content = buffer;
-		this.originalContent = new ReadableContainerDuplicator<ByteBuffer>(originalContent, this.content);
 	}
 	
 	@Override
@@ -86,44 +96,172 @@ public class DynamicResource implements ReadableResource, Closeable, Timestamped
 		return null;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public ReadableContainer<ByteBuffer> getReadable() throws IOException {
-		if (!alreadyRequested) {
-			alreadyRequested = true;
-			return shouldClose ? originalContent : new UncloseableReadableContainer(originalContent);
-		}
-		else {
-			// if the last modified was not set, fix it
-			// the data can no longer be updated
-			if (lastModified == null) {
+		return new ReplayingReadableContainer();
+	}
+
+	/**
+	 * Reads the next part of the original into the backend
+	 * @return the amount of bytes read, 0 if the original has no data available right now or -1 if it is finished
+	 */
+	private long pull(long position) throws IOException {
+		synchronized(originalLock) {
+			// someone else may have pulled in the meantime
+			if (available > position) {
+				return available - position;
+			}
+			else if (finished) {
+				return -1;
+			}
+			checkFailure();
+			ByteBuffer chunk = IOUtils.newByteBuffer(CHUNK_SIZE, true);
+			long read = originalContent.read(chunk);
+			if (read < 0) {
+				finished = true;
+				// the data can no longer be updated
 				lastModified = new Date();
+				if (shouldClose) {
+					originalContent.close();
+				}
+			}
+			else if (read > 0) {
+				// a pooled backend may have to wait for memory, only the reader that is pulling should wait for that, not the ones replaying
+				if (content instanceof OffHeapContainer) {
+					((OffHeapContainer) content).reserve(read);
+				}
+				lock(contentLock.writeLock());
+				try {
+					while (chunk.remainingData() > 0) {
+						if (content.write(chunk) <= 0) {
+							throw new IOException("Could not duplicate the data in the backend");
+						}
+					}
+				}
+				catch (IOException e) {
+					// part of the chunk may have been written, any later data would end up at the wrong position
+					failure = e;
+					throw e;
+				}
+				finally {
+					unlock(contentLock.writeLock());
+				}
+				available += read;
 			}
-			return ((DuplicatableContainer<ByteBuffer, ? extends ReadableContainer<ByteBuffer>>) content).duplicate(true);
+			return read;
 		}
 	}
 
-	private static class UncloseableReadableContainer implements ReadableContainer<ByteBuffer> {
-		private ReadableContainer<ByteBuffer> parent;
+	private void lock(Lock lock) {
+		if (lockContent) {
+			lock.lock();
+		}
+	}
 
-		public UncloseableReadableContainer(ReadableContainer<ByteBuffer> parent) {
-			this.parent = parent;
+	private void unlock(Lock lock) {
+		if (lockContent) {
+			lock.unlock();
 		}
+	}
 
-		@Override
-		public void close() throws IOException {
-			// do nothing
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("The data could not be duplicated, the resource can no longer be read", failure);
 		}
+	}
+
+	/**
+	 * Each reader has its own position in the duplicated data
+	 */
+	private class ReplayingReadableContainer implements ReadableContainer<ByteBuffer> {
+		private ReadableContainer<ByteBuffer> duplicate;
+		private long position;
 
 		@Override
 		public long read(ByteBuffer buffer) throws IOException {
-			return parent.read(buffer);
+			checkFailure();
+			if (buffer.remainingSpace() == 0) {
+				return 0;
+			}
+			while (true) {
+				if (position < available) {
+					lock(contentLock.readLock());
+					try {
+						long read = duplicate == null ? 0 : duplicate.read(buffer);
+						// depending on the backend, a duplicate may not see data that was added after it was created
+						if (read <= 0) {
+							refresh();
+							read = duplicate.read(buffer);
+						}
+						if (read <= 0) {
+							throw new IOException("The backend does not contain the expected data at position " + position);
+						}
+						position += read;
+						return read;
+					}
+					finally {
+						unlock(contentLock.readLock());
+					}
+				}
+				long pulled = pull(position);
+				if (pulled <= 0) {
+					return pulled;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void refresh() throws IOException {
+			if (duplicate != null) {
+				duplicate.close();
+			}
+			duplicate = ((DuplicatableContainer<ByteBuffer, ? extends ReadableContainer<ByteBuffer>>) content).duplicate(true);
+			// move the new duplicate to our position
+			if (duplicate instanceof ByteBuffer) {
+				((ByteBuffer) duplicate).skip(position);
+			}
+			else {
+				long skipped = 0;
+				while (skipped < position) {
+					long read = duplicate.read(IOUtils.newByteBuffer((int) Math.min(CHUNK_SIZE, position - skipped), true));
+					if (read <= 0) {
+						throw new IOException("Could not skip to position " + position);
+					}
+					skipped += read;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (duplicate != null) {
+				lock(contentLock.readLock());
+				try {
+					duplicate.close();
+				}
+				finally {
+					unlock(contentLock.readLock());
+				}
+			}
 		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		content.close();
+		try {
+			lock(contentLock.writeLock());
+			try {
+				content.close();
+			}
+			finally {
+				unlock(contentLock.writeLock());
+			}
+		}
+		finally {
+			if (shouldClose && !finished) {
+				originalContent.close();
+			}
+		}
 	}
 
 	@Override
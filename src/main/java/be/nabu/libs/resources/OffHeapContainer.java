@@ -0,0 +1,454 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.Container;
+import be.nabu.utils.io.api.DuplicatableContainer;
+
+/**
+ * A byte container that keeps its data outside of the java heap, it can be used as backend for the DynamicResource to keep large content from putting pressure on the garbage collector.
+ * The data is stored in direct buffers up to the spill threshold (or as long as a BufferPool provides buffers), anything beyond that is stored in a memory mapped temporary file.
+ *
+ * Duplicates share the data but have their own read position, writing to any of them appends to the shared data.
+ * Closing the original container immediately releases the memory and deletes the file, closing a duplicate only closes that view.
+ * Reading from a duplicate after the original was closed throws an exception.
+ */
+public class OffHeapContainer implements Container<ByteBuffer>, DuplicatableContainer<ByteBuffer, OffHeapContainer> {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+	// every mapped region is a separate mapping and the amount of mappings per process is limited (e.g. vm.max_map_count on linux)
+	public static final int DEFAULT_MAP_SIZE = 64 * 1024 * 1024;
+
+	private Storage storage;
+	private long position;
+	private boolean owner, closed;
+	private Object tracker;
+	private byte [] bytes = new byte[8192];
+
+	/**
+	 * @param spillThreshold the amount of bytes that is kept in direct memory before spilling to a temporary file
+	 */
+	public OffHeapContainer(long spillThreshold) {
+		this(spillThreshold, DEFAULT_SEGMENT_SIZE, null);
+	}
+
+	/**
+	 * @param segmentSize the size of the direct buffers
+	 * @param directory the directory for the temporary file, null for the default temporary directory
+	 */
+	public OffHeapContainer(long spillThreshold, int segmentSize, File directory) {
+		this(spillThreshold, segmentSize, DEFAULT_MAP_SIZE, directory);
+	}
+
+	/**
+	 * @param mapSize the size of the regions of the temporary file that are mapped into memory
+	 */
+	public OffHeapContainer(long spillThreshold, int segmentSize, int mapSize, File directory) {
+		if (segmentSize <= 0 || mapSize <= 0) {
+			throw new IllegalArgumentException("The segment and map size must be positive");
+		}
+		this.storage = new Storage(spillThreshold, segmentSize, mapSize, directory);
+		this.owner = true;
+	}
+
+	/**
+	 * The direct buffers are drawn from the pool and returned to it on close, if the pool refuses a buffer the rest of the data is spilled to a temporary file
+	 */
+	public OffHeapContainer(BufferPool pool, File directory) {
+		this.storage = new Storage(Long.MAX_VALUE, pool.getSegmentSize(), DEFAULT_MAP_SIZE, directory);
+		this.storage.pool = pool;
+		this.owner = true;
+		// if this container is never closed, the pool can still reclaim the buffers
+		this.tracker = pool.track(this, storage);
+	}
+
+	private OffHeapContainer(Storage storage, long position) {
+		this.storage = storage;
+		this.position = position;
+	}
+
+	@Override
+	public long read(ByteBuffer buffer) throws IOException {
+		if (closed) {
+			throw new IOException("The container is closed");
+		}
+		long total = 0;
+		while (buffer.remainingSpace() > 0) {
+			int read = storage.read(position, bytes, 0, (int) Math.min(bytes.length, buffer.remainingSpace()));
+			if (read <= 0) {
+				break;
+			}
+			buffer.write(bytes, 0, read);
+			position += read;
+			total += read;
+		}
+		return total;
+	}
+
+	@Override
+	public long write(ByteBuffer buffer) throws IOException {
+		if (closed) {
+			throw new IOException("The container is closed");
+		}
+		storage.reserve(buffer.remainingData());
+		long total = 0;
+		while (buffer.remainingData() > 0) {
+			int read = buffer.read(bytes);
+			if (read <= 0) {
+				break;
+			}
+			storage.append(bytes, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	@Override
+	public void flush() {
+		// the data is immediately visible to all duplicates
+	}
+
+	/**
+	 * A view on the same data, with duplicated state it continues from the current read position, otherwise it starts at the beginning
+	 */
+	@Override
+	public OffHeapContainer duplicate(boolean duplicateState) {
+		return new OffHeapContainer(storage, duplicateState ? position : 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			if (owner) {
+				if (tracker != null) {
+					storage.pool.untrack(tracker);
+				}
+				storage.release();
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that writing the given amount of bytes does not have to wait for buffers from the pool.
+	 * Writing calls this as well, but if you write while holding locks that readers need, call it before taking those locks.
+	 */
+	public void reserve(long length) throws IOException {
+		storage.reserve(length);
+	}
+
+	/**
+	 * The amount of bytes written so far
+	 */
+	public long getSize() {
+		return storage.getSize();
+	}
+
+	/**
+	 * Whether part of the data is stored in the temporary file
+	 */
+	public boolean isSpilled() {
+		return storage.getFile() != null;
+	}
+
+	File getFile() {
+		return storage.getFile();
+	}
+
+	private static class Storage implements Closeable {
+		private long spillThreshold;
+		private int segmentSize, mapSize;
+		private BufferPool pool;
+		private File directory, file;
+		private FileChannel channel;
+		// the data starts in direct segments and continues in mapped regions of the file
+		private List<java.nio.ByteBuffer> segments = new ArrayList<java.nio.ByteBuffer>(), regions = new ArrayList<java.nio.ByteBuffer>();
+		// the position in the data where the file starts, -1 as long as nothing is spilled
+		private long spilledAt = -1;
+		private long size;
+		private boolean released;
+		// buffers taken from the pool before appending, so appending never has to wait for the pool while holding the lock
+		private Deque<java.nio.ByteBuffer> reserved = new ArrayDeque<java.nio.ByteBuffer>();
+		// only one thread at a time waits for the pool
+		private Object reserveLock = new Object();
+		// set when the pool refused a buffer, the data is spilled from then on
+		private volatile boolean refused;
+		// readers must never access a buffer that is being released, that would crash the jvm
+		private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		public Storage(long spillThreshold, int segmentSize, int mapSize, File directory) {
+			this.spillThreshold = spillThreshold;
+			this.segmentSize = segmentSize;
+			this.mapSize = mapSize;
+			this.directory = directory;
+		}
+
+		public void append(byte [] bytes, int offset, int length) throws IOException {
+			lock.writeLock().lock();
+			try {
+				if (released) {
+					throw new IOException("The container is closed");
+				}
+				while (length > 0) {
+					java.nio.ByteBuffer buffer = locate(size, true);
+					int amount = Math.min(length, buffer.remaining());
+					buffer.put(bytes, offset, amount);
+					offset += amount;
+					length -= amount;
+					size += amount;
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * A view on the segment or region that contains the position, positioned at it.
+		 * When appending, the position may be at the end of the last buffer in which case a new one is added.
+		 */
+		private java.nio.ByteBuffer locate(long position, boolean append) throws IOException {
+			if (spilledAt < 0 || position < spilledAt) {
+				int index = (int) (position / segmentSize);
+				if (index == segments.size() && append) {
+					java.nio.ByteBuffer segment = allocate();
+					if (segment != null) {
+						segments.add(segment);
+					}
+					else {
+						spill(position);
+					}
+				}
+				if (index < segments.size()) {
+					java.nio.ByteBuffer segment = segments.get(index).duplicate();
+					segment.position((int) (position % segmentSize));
+					return segment;
+				}
+			}
+			long offset = position - spilledAt;
+			int index = (int) (offset / mapSize);
+			if (index == regions.size() && append) {
+				// mapping beyond the end of the file grows it
+				regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) index * mapSize, mapSize));
+			}
+			java.nio.ByteBuffer region = regions.get(index).duplicate();
+			region.position((int) (offset % mapSize));
+			return region;
+		}
+
+		// a direct segment or null if the data should be spilled
+		private java.nio.ByteBuffer allocate() throws IOException {
+			if ((long) (segments.size() + 1) * segmentSize > spillThreshold) {
+				return null;
+			}
+			else if (pool == null) {
+				return java.nio.ByteBuffer.allocateDirect(segmentSize);
+			}
+			java.nio.ByteBuffer buffer;
+			synchronized(reserved) {
+				buffer = reserved.poll();
+			}
+			// without a reservation we don't wait for the pool, the lock is held
+			return buffer != null || refused ? buffer : pool.tryAcquire();
+		}
+
+		public void reserve(long length) throws IOException {
+			if (pool == null) {
+				return;
+			}
+			synchronized(reserveLock) {
+				long capacity;
+				lock.readLock().lock();
+				try {
+					if (released || spilledAt >= 0) {
+						return;
+					}
+					capacity = (long) segments.size() * segmentSize - size;
+				}
+				finally {
+					lock.readLock().unlock();
+				}
+				while (!refused) {
+					synchronized(reserved) {
+						if (capacity + (long) reserved.size() * segmentSize >= length) {
+							break;
+						}
+					}
+					java.nio.ByteBuffer buffer = pool.acquire();
+					if (buffer == null) {
+						refused = true;
+					}
+					else {
+						lock.readLock().lock();
+						try {
+							// the container may have been closed while we were waiting
+							if (released) {
+								pool.release(buffer);
+								return;
+							}
+							synchronized(reserved) {
+								reserved.add(buffer);
+							}
+						}
+						finally {
+							lock.readLock().unlock();
+						}
+					}
+				}
+			}
+		}
+
+		private void spill(long position) throws IOException {
+			file = File.createTempFile("dynamic", ".bin", directory);
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			spilledAt = position;
+		}
+
+		public int read(long position, byte [] bytes, int offset, int length) throws IOException {
+			lock.readLock().lock();
+			try {
+				if (released) {
+					throw new IOException("The container is closed");
+				}
+				int total = 0;
+				while (length > 0 && position < size) {
+					java.nio.ByteBuffer buffer = locate(position, false);
+					int amount = (int) Math.min(Math.min(length, buffer.remaining()), size - position);
+					buffer.get(bytes, offset, amount);
+					offset += amount;
+					length -= amount;
+					position += amount;
+					total += amount;
+				}
+				return total;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		public long getSize() {
+			lock.readLock().lock();
+			try {
+				return size;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		public File getFile() {
+			lock.readLock().lock();
+			try {
+				return file;
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			release();
+		}
+
+		public void release() throws IOException {
+			lock.writeLock().lock();
+			try {
+				if (!released) {
+					released = true;
+					for (java.nio.ByteBuffer segment : segments) {
+						if (pool != null) {
+							pool.release(segment);
+						}
+						else {
+							free(segment);
+						}
+					}
+					synchronized(reserved) {
+						for (java.nio.ByteBuffer buffer : reserved) {
+							pool.release(buffer);
+						}
+						reserved.clear();
+					}
+					for (java.nio.ByteBuffer region : regions) {
+						free(region);
+					}
+					segments.clear();
+					regions.clear();
+					if (channel != null) {
+						try {
+							channel.close();
+						}
+						finally {
+							// if the file could not be unmapped, it may not be deletable yet
+							if (!file.delete()) {
+								file.deleteOnExit();
+							}
+						}
+					}
+				}
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Direct and mapped buffers are normally only released when they are garbage collected, this releases them immediately if the jvm allows it.
+	 */
+	static void free(java.nio.ByteBuffer buffer) {
+		try {
+			// java 9+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			invokeCleaner.invoke(field.get(null), buffer);
+		}
+		catch (Exception e) {
+			try {
+				// java 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+			catch (Exception f) {
+				// the buffer will be released by the garbage collector
+			}
+		}
+	}
+}
@@ -0,0 +1,494 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Creates the same zip as ResourceUtils.zip() but compresses the entries concurrently.
+ * Each entry is deflated into its own buffer (which is spilled to a temporary file if it grows too large), the buffers are then written in the original order.
+ * Content that is already compressed (archives, images,...) is stored as is.
+ *
+ * Because the entries are compressed up front, the zip is written without the help of ZipOutputStream. Zip64 is used when the size or amount of entries requires it.
+ */
+public class ParallelZipWriter {
+
+	private static final long MAX_INT = 0xFFFFFFFFL;
+	private static final int MAX_SHORT = 0xFFFF;
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final int VERSION = 20, VERSION_ZIP64 = 45;
+
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private long spillThreshold = 1024 * 1024 * 10;
+	private Set<String> storedContentTypes = new HashSet<String>(Arrays.asList(
+		"application/zip", "application/java-archive", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-7z-compressed", "application/x-rar-compressed",
+		"image/jpeg", "image/png", "image/gif", "image/webp"
+	));
+
+	public void zip(Resource resource, OutputStream output, boolean includeRoot) throws IOException {
+		zip(resource, output, includeRoot, null);
+	}
+
+	public void zip(Resource resource, OutputStream output, boolean includeRoot, Predicate<Resource> acceptor) throws IOException {
+		List<PendingEntry> entries = new ArrayList<PendingEntry>();
+		collect(resource, !includeRoot, null, acceptor, entries);
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		ZipStreamWriter writer = new ZipStreamWriter(output);
+		// we only allow a limited amount of entries to be compressed ahead of the writer
+		Deque<Future<CompressedEntry>> window = new ArrayDeque<Future<CompressedEntry>>();
+		try {
+			for (final PendingEntry entry : entries) {
+				window.add(executor.submit(new Callable<CompressedEntry>() {
+					@Override
+					public CompressedEntry call() throws Exception {
+						CompressedEntry compressed = compress(entry);
+						// the writer has given up, nobody will pick up the result
+						if (Thread.currentThread().isInterrupted()) {
+							compressed.data.delete();
+							throw new InterruptedException();
+						}
+						return compressed;
+					}
+				}));
+				if (window.size() >= concurrency * 2) {
+					writer.write(take(window));
+				}
+			}
+			while (!window.isEmpty()) {
+				writer.write(take(window));
+			}
+			writer.finish();
+		}
+		finally {
+			executor.shutdownNow();
+			// tasks that are still compressing will finish (or fail) on their own, wait for them so their spill files are not missed below
+			try {
+				ResourceUtils.awaitTermination(executor);
+			}
+			finally {
+				// clean up anything that was compressed but not written
+				for (Future<CompressedEntry> future : window) {
+					if (future.isDone() && !future.isCancelled()) {
+						try {
+							future.get().data.delete();
+						}
+						catch (Exception e) {
+							// ignore
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static CompressedEntry take(Deque<Future<CompressedEntry>> window) throws IOException {
+		try {
+			return window.poll().get();
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// same traversal rules as ResourceUtils.zip()
+	private void collect(Resource resource, boolean isRoot, String path, Predicate<Resource> acceptor, List<PendingEntry> entries) {
+		String childPath = path == null ? resource.getName() : path + "/" + resource.getName();
+		if (resource instanceof ReadableResource) {
+			entries.add(new PendingEntry(childPath, (ReadableResource) resource));
+		}
+		if (resource instanceof ResourceContainer) {
+			for (Resource child : (ResourceContainer<?>) resource) {
+				// if we don't accept it, don't recurse
+				if (acceptor != null && !acceptor.test(child)) {
+					continue;
+				}
+				if (!child.getName().startsWith(".")) {
+					collect(child, false, isRoot ? null : childPath, acceptor, entries);
+				}
+			}
+		}
+	}
+
+	private CompressedEntry compress(PendingEntry entry) throws IOException {
+		ReadableContainer<ByteBuffer> readable = entry.resource.getReadable();
+		try {
+			Date lastModified = entry.resource instanceof TimestampedResource ? ((TimestampedResource) entry.resource).getLastModified() : null;
+			return compress(entry.name, IOUtils.toInputStream(readable), isStored(entry.resource), lastModified);
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	CompressedEntry compress(String name, InputStream input, boolean stored, Date lastModified) throws IOException {
+		CompressedEntry compressed = new CompressedEntry();
+		compressed.name = name;
+		compressed.stored = stored;
+		compressed.time = toDosTime(lastModified == null ? new Date() : lastModified);
+		compressed.data = new SpillBuffer(spillThreshold);
+		CRC32 crc = new CRC32();
+		Deflater deflater = stored ? null : new Deflater(level, true);
+		try {
+			OutputStream output = deflater == null ? compressed.data : new DeflaterOutputStream(compressed.data, deflater, 8192);
+			byte [] buffer = new byte[8192];
+			int read;
+			long size = 0;
+			while ((read = input.read(buffer)) >= 0) {
+				crc.update(buffer, 0, read);
+				output.write(buffer, 0, read);
+				size += read;
+			}
+			output.close();
+			compressed.crc = crc.getValue();
+			compressed.size = size;
+			compressed.compressedSize = compressed.data.size();
+			return compressed;
+		}
+		catch (IOException e) {
+			compressed.data.delete();
+			throw e;
+		}
+		finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	private boolean isStored(Resource resource) {
+		String contentType = ResourceUtils.getContentType(resource);
+		return storedContentTypes.contains(contentType) || contentType.startsWith("video/") || contentType.startsWith("audio/");
+	}
+
+	private static long toDosTime(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			// the earliest date that can be represented
+			return (1 << 21) | (1 << 16);
+		}
+		return ((long) (year - 1980) << 25)
+			| ((calendar.get(Calendar.MONTH) + 1) << 21)
+			| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+			| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+			| (calendar.get(Calendar.MINUTE) << 5)
+			| (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+	public void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public Set<String> getStoredContentTypes() {
+		return storedContentTypes;
+	}
+	public void setStoredContentTypes(Set<String> storedContentTypes) {
+		this.storedContentTypes = storedContentTypes;
+	}
+
+	private static class PendingEntry {
+		private String name;
+		private ReadableResource resource;
+
+		public PendingEntry(String name, ReadableResource resource) {
+			this.name = name;
+			this.resource = resource;
+		}
+	}
+
+	static class CompressedEntry {
+		private String name;
+		private boolean stored;
+		private long time, crc, size, compressedSize;
+		private SpillBuffer data;
+	}
+
+	/**
+	 * Keeps the data in memory up until the threshold, after that everything is written to a temporary file.
+	 */
+	static class SpillBuffer extends OutputStream {
+		private long threshold, size;
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File file;
+		private OutputStream fileOutput;
+
+		public SpillBuffer(long threshold) {
+			this.threshold = threshold;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (fileOutput == null && size + length > threshold) {
+				file = File.createTempFile("zip", ".entry");
+				fileOutput = new FileOutputStream(file);
+				memory.writeTo(fileOutput);
+				memory = null;
+			}
+			if (fileOutput != null) {
+				fileOutput.write(bytes, offset, length);
+			}
+			else {
+				memory.write(bytes, offset, length);
+			}
+			size += length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (fileOutput != null) {
+				fileOutput.close();
+			}
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public void writeTo(OutputStream output) throws IOException {
+			if (file == null) {
+				memory.writeTo(output);
+			}
+			else {
+				InputStream input = new FileInputStream(file);
+				try {
+					byte [] buffer = new byte[8192];
+					int read;
+					while ((read = input.read(buffer)) >= 0) {
+						output.write(buffer, 0, read);
+					}
+				}
+				finally {
+					input.close();
+				}
+			}
+		}
+
+		public void delete() {
+			memory = null;
+			if (file != null) {
+				try {
+					close();
+				}
+				catch (IOException e) {
+					// ignore
+				}
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes precompressed entries in the zip format: a local header followed by the data for each entry and the central directory at the end.
+	 */
+	static class ZipStreamWriter {
+		private OutputStream output;
+		private long offset;
+		private ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+		private long entries;
+
+		public ZipStreamWriter(OutputStream output) {
+			this.output = output;
+		}
+
+		public void write(CompressedEntry entry) throws IOException {
+			try {
+				byte [] name = entry.name.getBytes(StandardCharsets.UTF_8);
+				boolean zip64 = entry.size >= MAX_INT || entry.compressedSize >= MAX_INT;
+				boolean zip64Offset = offset >= MAX_INT;
+				int method = entry.stored ? 0 : 8;
+				long headerOffset = offset;
+
+				ByteArrayOutputStream header = new ByteArrayOutputStream();
+				writeInt(header, 0x04034b50);
+				writeShort(header, zip64 ? VERSION_ZIP64 : VERSION);
+				writeShort(header, FLAG_UTF8);
+				writeShort(header, method);
+				writeInt(header, entry.time);
+				writeInt(header, entry.crc);
+				writeInt(header, zip64 ? MAX_INT : entry.compressedSize);
+				writeInt(header, zip64 ? MAX_INT : entry.size);
+				writeShort(header, name.length);
+				writeShort(header, zip64 ? 20 : 0);
+				header.write(name);
+				if (zip64) {
+					writeShort(header, 0x0001);
+					writeShort(header, 16);
+					writeLong(header, entry.size);
+					writeLong(header, entry.compressedSize);
+				}
+				header.writeTo(output);
+				entry.data.writeTo(output);
+				offset += header.size() + entry.compressedSize;
+
+				ByteArrayOutputStream extra = new ByteArrayOutputStream();
+				if (zip64 || zip64Offset) {
+					writeShort(extra, 0x0001);
+					writeShort(extra, (zip64 ? 16 : 0) + (zip64Offset ? 8 : 0));
+					if (zip64) {
+						writeLong(extra, entry.size);
+						writeLong(extra, entry.compressedSize);
+					}
+					if (zip64Offset) {
+						writeLong(extra, headerOffset);
+					}
+				}
+				int version = zip64 || zip64Offset ? VERSION_ZIP64 : VERSION;
+				writeInt(centralDirectory, 0x02014b50);
+				writeShort(centralDirectory, version);
+				writeShort(centralDirectory, version);
+				writeShort(centralDirectory, FLAG_UTF8);
+				writeShort(centralDirectory, method);
+				writeInt(centralDirectory, entry.time);
+				writeInt(centralDirectory, entry.crc);
+				writeInt(centralDirectory, zip64 ? MAX_INT : entry.compressedSize);
+				writeInt(centralDirectory, zip64 ? MAX_INT : entry.size);
+				writeShort(centralDirectory, name.length);
+				writeShort(centralDirectory, extra.size());
+				// comment length, disk number, internal & external attributes
+				writeShort(centralDirectory, 0);
+				writeShort(centralDirectory, 0);
+				writeShort(centralDirectory, 0);
+				writeInt(centralDirectory, 0);
+				writeInt(centralDirectory, zip64Offset ? MAX_INT : headerOffset);
+				centralDirectory.write(name);
+				extra.writeTo(centralDirectory);
+				entries++;
+			}
+			finally {
+				entry.data.delete();
+			}
+		}
+
+		public void finish() throws IOException {
+			long centralDirectoryOffset = offset;
+			long centralDirectorySize = centralDirectory.size();
+			centralDirectory.writeTo(output);
+			offset += centralDirectorySize;
+			boolean zip64 = entries >= MAX_SHORT || centralDirectoryOffset >= MAX_INT || centralDirectorySize >= MAX_INT;
+			ByteArrayOutputStream end = new ByteArrayOutputStream();
+			if (zip64) {
+				long zip64EndOffset = offset;
+				writeInt(end, 0x06064b50);
+				// the size of the remainder of the record
+				writeLong(end, 44);
+				writeShort(end, VERSION_ZIP64);
+				writeShort(end, VERSION_ZIP64);
+				writeInt(end, 0);
+				writeInt(end, 0);
+				writeLong(end, entries);
+				writeLong(end, entries);
+				writeLong(end, centralDirectorySize);
+				writeLong(end, centralDirectoryOffset);
+				// the locator
+				writeInt(end, 0x07064b50);
+				writeInt(end, 0);
+				writeLong(end, zip64EndOffset);
+				writeInt(end, 1);
+			}
+			writeInt(end, 0x06054b50);
+			writeShort(end, 0);
+			writeShort(end, 0);
+			writeShort(end, zip64 ? MAX_SHORT : (int) entries);
+			writeShort(end, zip64 ? MAX_SHORT : (int) entries);
+			writeInt(end, zip64 ? MAX_INT : centralDirectorySize);
+			writeInt(end, zip64 ? MAX_INT : centralDirectoryOffset);
+			writeShort(end, 0);
+			end.writeTo(output);
+			output.flush();
+		}
+
+		private static void writeShort(OutputStream output, int value) throws IOException {
+			output.write(value & 0xff);
+			output.write((value >>> 8) & 0xff);
+		}
+
+		private static void writeInt(OutputStream output, long value) throws IOException {
+			writeShort(output, (int) (value & 0xffff));
+			writeShort(output, (int) ((value >>> 16) & 0xffff));
+		}
+
+		private static void writeLong(OutputStream output, long value) throws IOException {
+			writeInt(output, value & MAX_INT);
+			writeInt(output, value >>> 32);
+		}
+	}
+}
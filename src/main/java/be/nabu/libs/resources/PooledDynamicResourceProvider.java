@@ -0,0 +1,59 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.File;
+import java.io.IOException;
+
+import be.nabu.libs.resources.api.DynamicResourceProvider;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Creates dynamic resources that buffer their content in direct buffers drawn from a shared pool, bounding the total amount of memory that is used.
+ * When the budget is exhausted, the resources wait for buffers or spill to a temporary file, see the BufferPool.
+ * The buffers of a resource are returned to the pool when the resource is closed, so the resources should always be closed.
+ * Resources that are garbage collected without being closed are reclaimed by the pool, but until the garbage collector notices they keep using the budget.
+ */
+public class PooledDynamicResourceProvider implements DynamicResourceProvider {
+
+	private BufferPool pool;
+	private File directory;
+
+	public PooledDynamicResourceProvider(BufferPool pool) {
+		this(pool, null);
+	}
+
+	/**
+	 * @param directory the directory for the spill files, null for the default temporary directory
+	 */
+	public PooledDynamicResourceProvider(BufferPool pool, File directory) {
+		this.pool = pool;
+		this.directory = directory;
+	}
+
+	@Override
+	public ReadableResource createDynamicResource(ReadableContainer<ByteBuffer> originalContent, String name, String contentType, boolean shouldClose) throws IOException {
+		return new DynamicResource(originalContent, new OffHeapContainer(pool, directory), name, contentType, shouldClose);
+	}
+
+	public BufferPool getPool() {
+		return pool;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy view on the parameters in a raw query string, nothing is parsed up front.
+ * Keys and values are trimmed and only decoded when they contain encoded characters, a parameter without "=" has a null value.
+ * The parameters are the same as those returned by URIUtils.getQueryProperties().
+ */
+public class QueryParameters implements Iterable<Map.Entry<String, String>> {
+
+	private String query;
+	// the end of the last parameter, trailing empty parameters are ignored
+	private int end;
+
+	public QueryParameters(String rawQuery) {
+		this.query = rawQuery == null ? "" : rawQuery;
+		this.end = rawQuery == null ? -1 : getEnd(query);
+	}
+
+	public static QueryParameters parse(URI uri) {
+		return new QueryParameters(uri.getQuery() == null ? null : uri.getRawQuery());
+	}
+
+	/**
+	 * The first value for the given key, null if there is no such parameter or it has no value
+	 */
+	public String getFirst(String key) {
+		for (Map.Entry<String, String> parameter : this) {
+			if (parameter.getValue() != null && parameter.getKey().equals(key)) {
+				return parameter.getValue();
+			}
+		}
+		return null;
+	}
+
+	public List<String> getAll(String key) {
+		List<String> values = new ArrayList<String>();
+		for (Map.Entry<String, String> parameter : this) {
+			if (parameter.getValue() != null && parameter.getKey().equals(key)) {
+				values.add(parameter.getValue());
+			}
+		}
+		return values;
+	}
+
+	public boolean contains(String key) {
+		for (Map.Entry<String, String> parameter : this) {
+			if (parameter.getKey().equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Map<String, List<String>> toMap() {
+		Map<String, List<String>> parameters = new HashMap<String, List<String>>();
+		for (Map.Entry<String, String> parameter : this) {
+			List<String> values = parameters.get(parameter.getKey());
+			if (values == null) {
+				values = new ArrayList<String>();
+				parameters.put(parameter.getKey(), values);
+			}
+			if (parameter.getValue() != null) {
+				values.add(parameter.getValue());
+			}
+		}
+		return parameters;
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new Iterator<Map.Entry<String, String>>() {
+			private int position = 0;
+
+			@Override
+			public boolean hasNext() {
+				return position <= end;
+			}
+
+			@Override
+			public Map.Entry<String, String> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int separator = query.indexOf('&', position);
+				if (separator < 0 || separator > end) {
+					separator = end;
+				}
+				int equals = query.indexOf('=', position);
+				Map.Entry<String, String> parameter;
+				if (equals < 0 || equals >= separator) {
+					parameter = new AbstractMap.SimpleImmutableEntry<String, String>(decode(query, position, separator), null);
+				}
+				else {
+					parameter = new AbstractMap.SimpleImmutableEntry<String, String>(decode(query, position, equals), decode(query, equals + 1, separator));
+				}
+				position = separator + 1;
+				return parameter;
+			}
+		};
+	}
+
+	private static String decode(String query, int start, int end) {
+		// trim
+		while (start < end && query.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && query.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		for (int i = start; i < end; i++) {
+			char c = query.charAt(i);
+			if (c == '%' || c == '+') {
+				return URIUtils.decodeQueryPart(query.substring(start, end));
+			}
+		}
+		return query.substring(start, end);
+	}
+
+	/**
+	 * This mimics the original split("[\\s]*&[\\s]*"): if there is at least one "&", trailing parameters that only contain whitespace are dropped.
+	 */
+	private static int getEnd(String query) {
+		int end = query.length();
+		if (query.indexOf('&') < 0) {
+			return end;
+		}
+		while (end >= 0) {
+			int separator = query.lastIndexOf('&', end - 1);
+			if (!isWhitespace(query, separator + 1, end)) {
+				return end;
+			}
+			if (separator < 0) {
+				return -1;
+			}
+			end = separator;
+		}
+		return end;
+	}
+
+	private static boolean isWhitespace(String query, int start, int end) {
+		for (int i = start; i < end; i++) {
+			switch (query.charAt(i)) {
+				case ' ':
+				case '\t':
+				case '\n':
+				case '\u000B':
+				case '\f':
+				case '\r':
+				break;
+				default:
+					return false;
+			}
+		}
+		return true;
+	}
+}
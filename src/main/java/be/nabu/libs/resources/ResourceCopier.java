@@ -0,0 +1,223 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.WritableResource;
+
+/**
+ * Copies entire trees with a bounded pool of workers.
+ * The tree is walked (and directories are created) on the calling thread while the actual file copies are streamed to the workers.
+ * When the workers can't keep up, the calling thread copies files itself which automatically throttles the walk.
+ *
+ * Failures do not abort the copy, they are reported at the end. Note that the target containers must allow concurrent creation of children.
+ */
+public class ResourceCopier {
+
+	public enum OverwritePolicy {
+		// a file that already exists is reported as a failure
+		FAIL,
+		// a file that already exists is left alone
+		SKIP,
+		// a file that already exists is overwritten
+		OVERWRITE
+	}
+
+	public interface CopyListener {
+		public void copied(String path, long bytes);
+		public void skipped(String path);
+		public void failed(String path, Exception exception);
+	}
+
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+	private int retries = 0;
+	private OverwritePolicy overwritePolicy = OverwritePolicy.FAIL;
+	private CopyListener listener;
+
+	/**
+	 * Copies the original resource (and everything in it) to the target using the given name.
+	 */
+	public CopyReport copy(Resource original, ManageableContainer<?> target, String newName) throws IOException {
+		CopyReport report = new CopyReport();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(concurrency * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			walk(executor, report, original, target, newName, newName);
+		}
+		finally {
+			executor.shutdown();
+			ResourceUtils.awaitTermination(executor);
+		}
+		return report;
+	}
+
+	private void walk(ThreadPoolExecutor executor, final CopyReport report, final Resource original, final ManageableContainer<?> target, final String name, final String path) {
+		if (original instanceof ResourceContainer) {
+			ManageableContainer<?> directory;
+			try {
+				Resource existing = target.getChild(name);
+				directory = (ManageableContainer<?>) (existing == null ? target.create(name, Resource.CONTENT_TYPE_DIRECTORY) : existing);
+			}
+			catch (Exception e) {
+				failed(report, path, e);
+				return;
+			}
+			for (Resource child : (ResourceContainer<?>) original) {
+				walk(executor, report, child, directory, child.getName(), path + "/" + child.getName());
+			}
+		}
+		else if (original instanceof ReadableResource) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					copyFile(report, (ReadableResource) original, target, name, path);
+				}
+			});
+		}
+		else {
+			failed(report, path, new IOException("Could not copy: " + original.getName()));
+		}
+	}
+
+	private void copyFile(CopyReport report, ReadableResource original, ManageableContainer<?> target, String name, String path) {
+		int attempt = 0;
+		boolean created = false;
+		while (true) {
+			try {
+				Resource child = target.getChild(name);
+				// if we created it in a previous attempt, we can simply overwrite it
+				if (child != null && !created) {
+					if (overwritePolicy == OverwritePolicy.SKIP) {
+						report.skipped.incrementAndGet();
+						if (listener != null) {
+							listener.skipped(path);
+						}
+						return;
+					}
+					else if (overwritePolicy == OverwritePolicy.FAIL) {
+						failed(report, path, new IOException("The target '" + path + "' already exists"));
+						return;
+					}
+				}
+				// if the target already has the content, there is no need to transfer it
+				if (ResourceUtils.copyByHash(original, target, name, child) != null) {
+					report.deduplicated.incrementAndGet();
+					if (listener != null) {
+						listener.copied(path, 0);
+					}
+					return;
+				}
+				if (child == null) {
+					child = target.create(name, ResourceUtils.getContentType(original));
+					created = true;
+				}
+				long bytes = ResourceUtils.copyContent(original, (WritableResource) child);
+				report.files.incrementAndGet();
+				report.bytes.addAndGet(bytes);
+				if (listener != null) {
+					listener.copied(path, bytes);
+				}
+				return;
+			}
+			catch (Exception e) {
+				if (attempt++ >= retries) {
+					failed(report, path, e);
+					return;
+				}
+			}
+		}
+	}
+
+	private void failed(CopyReport report, String path, Exception exception) {
+		report.failures.put(path, exception);
+		if (listener != null) {
+			listener.failed(path, exception);
+		}
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	public OverwritePolicy getOverwritePolicy() {
+		return overwritePolicy;
+	}
+	public void setOverwritePolicy(OverwritePolicy overwritePolicy) {
+		this.overwritePolicy = overwritePolicy;
+	}
+
+	public CopyListener getListener() {
+		return listener;
+	}
+	public void setListener(CopyListener listener) {
+		this.listener = listener;
+	}
+
+	public static class CopyReport {
+		private AtomicLong files = new AtomicLong(), bytes = new AtomicLong(), skipped = new AtomicLong(), deduplicated = new AtomicLong();
+		// sorted on path so the report is deterministic
+		private Map<String, Exception> failures = new ConcurrentSkipListMap<String, Exception>();
+
+		public long getFiles() {
+			return files.get();
+		}
+		public long getBytes() {
+			return bytes.get();
+		}
+		public long getSkipped() {
+			return skipped.get();
+		}
+		/**
+		 * The files that were not transferred because the target already had their content
+		 */
+		public long getDeduplicated() {
+			return deduplicated.get();
+		}
+		public Map<String, Exception> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+		@Override
+		public String toString() {
+			return "Copied " + getFiles() + " files (" + getBytes() + " bytes), deduplicated " + getDeduplicated() + ", skipped " + getSkipped() + ", failed " + failures.size();
+		}
+	}
+}
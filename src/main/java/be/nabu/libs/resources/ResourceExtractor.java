@@ -0,0 +1,284 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Extracts a zip into a container.
+ * The zip is decoded on the calling thread while the entries are written to the target by a bounded pool of workers.
+ * Entries that are too large to buffer are written on the calling thread itself, as are entries that the workers can't keep up with.
+ *
+ * Directories are only resolved once per path. Entries that would end up outside of the target (e.g. "../../file") are rejected.
+ * Failures to write an entry do not abort the extraction, they are reported at the end. An invalid or unsafe zip does abort it.
+ * Note that the target containers must allow concurrent creation of children.
+ */
+public class ResourceExtractor {
+
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+	private long bufferThreshold = 1024 * 1024;
+
+	public ExtractReport extract(Resource zipResource, ResourceContainer<?> target) throws IOException {
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) zipResource).getReadable();
+		try {
+			return extract(new ZipInputStream(new BufferedInputStream(IOUtils.toInputStream(readable))), target);
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	public ExtractReport extract(ZipInputStream input, ResourceContainer<?> target) throws IOException {
+		final ExtractReport report = new ExtractReport();
+		Map<String, ResourceContainer<?>> directories = new HashMap<String, ResourceContainer<?>>();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(concurrency * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		long started = System.currentTimeMillis();
+		try {
+			ZipEntry entry;
+			while ((entry = input.getNextEntry()) != null) {
+				final String path = getSafePath(entry.getName());
+				if (entry.isDirectory() || path.isEmpty()) {
+					continue;
+				}
+				int index = path.lastIndexOf('/');
+				final ResourceContainer<?> parent;
+				try {
+					parent = index < 0 ? target : getDirectory(directories, target, path.substring(0, index));
+				}
+				catch (IOException e) {
+					failed(report, path, e);
+					continue;
+				}
+				final String name = path.substring(index + 1);
+				// small entries are read into memory so they can be written in parallel, note that the size in the entry is usually not known up front
+				ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+				if (read(input, buffered, bufferThreshold + 1) <= bufferThreshold) {
+					final byte [] content = buffered.toByteArray();
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								write(report, parent, name, IOUtils.wrap(content, true));
+							}
+							catch (Exception e) {
+								failed(report, path, e);
+							}
+						}
+					});
+				}
+				else {
+					try {
+						// the sequence closes the streams it has finished, the zip stream must remain open for the next entry
+						InputStream remainder = new FilterInputStream(input) {
+							@Override
+							public void close() {
+								// do nothing
+							}
+						};
+						write(report, parent, name, IOUtils.wrap(new SequenceInputStream(new ByteArrayInputStream(buffered.toByteArray()), remainder)));
+					}
+					catch (Exception e) {
+						failed(report, path, e);
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+			try {
+				ResourceUtils.awaitTermination(executor);
+			}
+			finally {
+				report.duration = System.currentTimeMillis() - started;
+			}
+		}
+		return report;
+	}
+
+	private static void write(ExtractReport report, ResourceContainer<?> parent, String name, ReadableContainer<ByteBuffer> content) throws IOException {
+		Resource create = ((ManageableContainer<?>) parent).create(name, getContentType(name));
+		WritableContainer<ByteBuffer> writable = ((WritableResource) create).getWritable();
+		try {
+			report.bytes.addAndGet(IOUtils.copyBytes(content, writable));
+		}
+		finally {
+			writable.close();
+		}
+		report.files.incrementAndGet();
+	}
+
+	private static void failed(ExtractReport report, String path, Exception exception) {
+		report.failures.put(path, exception);
+	}
+
+	// reads at most the given amount of bytes
+	private static long read(InputStream input, ByteArrayOutputStream output, long limit) throws IOException {
+		byte [] buffer = new byte[8192];
+		long total = 0;
+		int read;
+		while (total < limit && (read = input.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) >= 0) {
+			output.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	static String getContentType(String name) {
+		String contentType = URLConnection.guessContentTypeFromName(name);
+		return contentType == null ? "application/octet-stream" : contentType;
+	}
+
+	/**
+	 * Normalizes the name of an entry to a relative path, an exception is thrown if the path would point outside of the target.
+	 */
+	static String getSafePath(String name) throws IOException {
+		List<String> segments = new ArrayList<String>();
+		int start = 0;
+		// some tools write windows separators
+		name = name.replace('\\', '/');
+		while (start <= name.length()) {
+			int end = name.indexOf('/', start);
+			if (end < 0) {
+				end = name.length();
+			}
+			String segment = name.substring(start, end);
+			if (segment.equals("..")) {
+				if (segments.isEmpty()) {
+					throw new IOException("The zip entry '" + name + "' points outside of the target");
+				}
+				segments.remove(segments.size() - 1);
+			}
+			else if (!segment.isEmpty() && !segment.equals(".")) {
+				// a drive letter like "c:"
+				if (segments.isEmpty() && segment.length() == 2 && segment.charAt(1) == ':') {
+					throw new IOException("The zip entry '" + name + "' points outside of the target");
+				}
+				segments.add(segment);
+			}
+			start = end + 1;
+		}
+		StringBuilder builder = new StringBuilder();
+		for (String segment : segments) {
+			if (builder.length() > 0) {
+				builder.append('/');
+			}
+			builder.append(segment);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Resolves (and if necessary creates) the directory for the given path, each directory is only resolved once.
+	 * The path must already be normalized.
+	 */
+	static ResourceContainer<?> getDirectory(Map<String, ResourceContainer<?>> directories, ResourceContainer<?> target, String path) throws IOException {
+		ResourceContainer<?> directory = directories.get(path);
+		if (directory == null) {
+			int index = path.lastIndexOf('/');
+			ResourceContainer<?> parent = index < 0 ? target : getDirectory(directories, target, path.substring(0, index));
+			String name = path.substring(index + 1);
+			Resource child = parent.getChild(name);
+			if (child == null) {
+				if (!(parent instanceof ManageableContainer)) {
+					throw new IOException("Can not manage " + ResourceUtils.getPath(parent) + ", failed to create directory: " + name);
+				}
+				child = ((ManageableContainer<?>) parent).create(name, Resource.CONTENT_TYPE_DIRECTORY);
+			}
+			if (!(child instanceof ResourceContainer)) {
+				throw new IOException("The child " + ResourceUtils.getPath(child) + " is not a resource container");
+			}
+			directory = (ResourceContainer<?>) child;
+			directories.put(path, directory);
+		}
+		return directory;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public long getBufferThreshold() {
+		return bufferThreshold;
+	}
+	public void setBufferThreshold(long bufferThreshold) {
+		this.bufferThreshold = bufferThreshold;
+	}
+
+	public static class ExtractReport {
+		private AtomicLong files = new AtomicLong(), bytes = new AtomicLong();
+		private volatile long duration;
+		// sorted on path so the report is deterministic
+		private Map<String, Exception> failures = new ConcurrentSkipListMap<String, Exception>();
+
+		public long getFiles() {
+			return files.get();
+		}
+		public long getBytes() {
+			return bytes.get();
+		}
+		public long getDuration() {
+			return duration;
+		}
+		// the amount of bytes written per second
+		public long getThroughput() {
+			return duration == 0 ? getBytes() * 1000 : getBytes() * 1000 / duration;
+		}
+		public Map<String, Exception> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+		@Override
+		public String toString() {
+			return "Extracted " + getFiles() + " files (" + getBytes() + " bytes) in " + getDuration() + "ms (" + getThroughput() + " bytes/s), failed " + failures.size();
+		}
+	}
+}
@@ -21,22 +21,24 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLConnection;
 import java.security.Principal;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 
-import be.nabu.libs.resources.api.Archive;
 import be.nabu.libs.resources.api.ArchiveResolver;
 import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.libs.resources.api.ResourceResolver;
 
 public class ResourceFactory {
 
-	private static ResourceFactory instance;
+	private static volatile ResourceFactory instance;
 	
 	private String defaultScheme = System.getProperty("be.nabu.libs.resources.defaultScheme", "file");
 	
@@ -51,11 +53,23 @@ public class ResourceFactory {
 		return instance;
 	}
 	
-	private Map<String, ResourceResolver> resolvers = new LinkedHashMap<String, ResourceResolver>();
+	// the registry is copy-on-write: every change publishes a new immutable snapshot so lookups never need to lock
+	private volatile Map<String, ResourceResolver> resolvers = Collections.emptyMap();
+	
+	// opened archives can be reused for nested archive uris, this is disabled by default, see setArchiveCaching()
+	private volatile ArchiveCache archiveCache = new ArchiveCache(Integer.parseInt(System.getProperty("be.nabu.libs.resources.archiveCacheSize", "0")));
+	
+	// resolution caches per scheme, published the same way as the resolvers
+	private volatile Map<String, ResourceResolutionCache> caches = Collections.emptyMap();
 	
 	public void setSchemeResolver(String scheme, ResourceResolver resolver, boolean overrideExisting) {
-		if (overrideExisting || !resolvers.containsKey(scheme))
-			resolvers.put(scheme, resolver);
+		synchronized(this) {
+			if (overrideExisting || !resolvers.containsKey(scheme)) {
+				Map<String, ResourceResolver> resolvers = new LinkedHashMap<String, ResourceResolver>(this.resolvers);
+				resolvers.put(scheme, resolver);
+				this.resolvers = Collections.unmodifiableMap(resolvers);
+			}
+		}
 	}
 	
 	public void addResourceResolver(ResourceResolver resolver) {
@@ -64,8 +78,12 @@ public class ResourceFactory {
 	}
 	
 	public void removeResourceResolver(ResourceResolver resolver) {
-		for (String scheme : resolvers.keySet())
-			resolvers.remove(scheme);
+		synchronized(this) {
+			Map<String, ResourceResolver> resolvers = new LinkedHashMap<String, ResourceResolver>(this.resolvers);
+			// only remove the schemes that are actually bound to this resolver
+			resolvers.values().removeIf(registered -> registered == resolver);
+			this.resolvers = Collections.unmodifiableMap(resolvers);
+		}
 	}
 	
 	public ResourceResolver getResolver(String scheme) {
@@ -78,9 +96,10 @@ public class ResourceFactory {
 	
 	@SuppressWarnings("unchecked")
 	private Map<String, ResourceResolver> getResolvers() {
-		if (resolvers.isEmpty()) {
+		Map<String, ResourceResolver> current = resolvers;
+		if (current.isEmpty()) {
 			synchronized(this) {
-				if (resolvers.isEmpty()) {
+				if (this.resolvers.isEmpty()) {
 					Map<String, ResourceResolver> resolvers = new LinkedHashMap<String, ResourceResolver>();
 					try {
 						// let's try this with custom service loading based on a configuration
@@ -116,56 +135,155 @@ public class ResourceFactory {
 							}
 						}
 					}
-					this.resolvers.putAll(resolvers);
+					this.resolvers = Collections.unmodifiableMap(resolvers);
 				}
+				current = this.resolvers;
 			}
 		}
-		return resolvers;
+		return current;
+	}
+	
+	/**
+	 * Enables caching of resolved resources for the given scheme, by default nothing is cached.
+	 * Only enable this for schemes where resolved resources can be safely shared, see ResourceResolutionCache.
+	 */
+	public void setCaching(String scheme, int maxSize, long timeout) {
+		synchronized(this) {
+			Map<String, ResourceResolutionCache> caches = new LinkedHashMap<String, ResourceResolutionCache>(this.caches);
+			caches.put(scheme, new ResourceResolutionCache(maxSize, timeout));
+			this.caches = Collections.unmodifiableMap(caches);
+		}
+	}
+	
+	public void removeCaching(String scheme) {
+		synchronized(this) {
+			Map<String, ResourceResolutionCache> caches = new LinkedHashMap<String, ResourceResolutionCache>(this.caches);
+			caches.remove(scheme);
+			this.caches = Collections.unmodifiableMap(caches);
+		}
+	}
+	
+	/**
+	 * Enables reuse of opened archives for nested archive uris, a size of 0 disables it (the default).
+	 * Cached archives are shared by all callers and closed by the cache when evicted, only enable this for archive implementations that allow this, see ArchiveCache.
+	 */
+	public void setArchiveCaching(int maxSize) {
+		ArchiveCache previous;
+		synchronized(this) {
+			previous = archiveCache;
+			archiveCache = new ArchiveCache(maxSize);
+		}
+		previous.clear();
+	}
+	
+	public ArchiveCache getArchiveCache() {
+		return archiveCache;
+	}
+	
+	public ResourceResolutionCache getCache(String scheme) {
+		return caches.get(scheme);
+	}
+	
+	public void invalidate(URI uri) throws IOException {
+		ResourceResolutionCache cache = caches.get(getCacheScheme(uri));
+		if (cache != null) {
+			cache.invalidate(uri);
+		}
+	}
+	
+	public void invalidatePrefix(URI uri) throws IOException {
+		ResourceResolutionCache cache = caches.get(getCacheScheme(uri));
+		if (cache != null) {
+			cache.invalidatePrefix(uri);
+		}
+	}
+	
+	private String getCacheScheme(URI uri) {
+		return uri.getScheme() != null && getResolvers().containsKey(uri.getScheme()) ? uri.getScheme() : defaultScheme;
 	}
 	
 	public Resource resolve(URI uri, Principal principal) throws IOException {
-		Resource result;
+		// take a single snapshot of the registry, we don't want it to change halfway through the lookup
+		Map<String, ResourceResolver> resolvers = getResolvers();
+		String scheme = uri.getScheme() != null && resolvers.containsKey(uri.getScheme()) ? uri.getScheme() : defaultScheme;
+		ResourceResolver resolver = resolvers.get(scheme);
+		if (resolver == null)
+			throw new IllegalArgumentException("The scheme " + uri.getScheme() + " has no registered handler");
+		ResourceResolutionCache cache = caches.isEmpty() ? null : caches.get(scheme);
+		if (cache != null) {
+			Resource cached = cache.get(uri, principal);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		Resource result = resolve(resolver, uri, principal);
+		if (cache != null) {
+			cache.put(uri, principal, result);
+		}
+		return result;
+	}
+	
+	private Resource resolve(ResourceResolver resolver, URI uri, Principal principal) throws IOException {
 		// it is possible to return null so for instance you might want to check if something exists and if not, create it
 		// the "mkdir()" functionality has the ability to scan further up the tree to find something
-		if (getResolvers().containsKey(uri.getScheme()))
-			result = getResolvers().get(uri.getScheme()).getResource(uri, principal);
-		else if (getResolvers().containsKey(defaultScheme)) 
-			result = getResolvers().get(defaultScheme).getResource(uri, principal);
-		else
-			throw new IllegalArgumentException("The scheme " + uri.getScheme() + " has no registered handler");
-		URI archiveUri = uri;
-		String childPath = null;
+		Resource result = resolver.getResource(uri, principal);
 		// we could not resolve it, let's check if we have an archive along the way
-		// to detect archives, we need at least a content type, which in turn requires an extension to guesstimate
-		try {
-			// TODO: put this in a while loop, move the archiveURI to test multiple paths
-			if (result == null && archiveUri != null && archiveUri.getPath() != null && archiveUri.getPath().matches(".*/[^/]+\\.[^/]+/.*")) {
-				String resourceName = uri.getPath().replaceFirst("^.*/[^/]+\\.[^/]+/(.*)$", "$1");
-				String parentPath = uri.getPath().replaceFirst("^(.*/[^/]+\\.[^/]+)/.*$", "$1");
-				uri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), parentPath, uri.getQuery(), uri.getFragment());
-				childPath = childPath == null ? resourceName : childPath + "/" + resourceName;
-				String contentType = URLConnection.guessContentTypeFromName(parentPath);
-				ArchiveResolver resolver = ArchiveFactory.getInstance().getResolver(contentType);
-				if (resolver != null) {
-					Resource archiveResource = resolve(uri, principal);
-					Archive<Resource> archive = resolver.newInstance();
-					archive.setSource(archiveResource);
-					result = ResourceUtils.resolve(archive, childPath);
-				}
+		if (result == null && uri.getPath() != null) {
+			try {
+				result = resolveInArchive(resolver, uri, principal);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
 			}
-		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
 		}
 		return result;
 	}
 	
+	/**
+	 * Walks the path from left to right, every segment that looks like an archive is opened and the remainder of the path is resolved inside of it.
+	 * This allows for archives in archives (e.g. /bundle.zip/lib/library.jar/file.txt) and dotted directories in front of the actual archive.
+	 */
+	private Resource resolveInArchive(ResourceResolver resolver, URI uri, Principal principal) throws IOException, URISyntaxException {
+		String path = uri.getPath();
+		// the innermost archive opened so far and the offset in the path where its content starts
+		Resource current = null;
+		int currentStart = 0;
+		int segmentStart = path.startsWith("/") ? 1 : 0;
+		int segmentEnd;
+		// the last segment is the resource we are looking for, we only check the ones before it
+		while ((segmentEnd = path.indexOf('/', segmentStart)) >= 0) {
+			// to detect archives, we need at least a content type, which in turn requires an extension to guesstimate
+			int extension = path.lastIndexOf('.', segmentEnd - 1);
+			if (extension > segmentStart && extension < segmentEnd - 1) {
+				ArchiveResolver archiveResolver = ArchiveFactory.getInstance().getResolver(URLConnection.guessContentTypeFromName(path.substring(segmentStart, segmentEnd)));
+				if (archiveResolver != null) {
+					URI archiveUri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), path.substring(0, segmentEnd), uri.getQuery(), uri.getFragment());
+					Resource source = current == null
+						? resolver.getResource(archiveUri, principal)
+						: ResourceUtils.resolve(current, path.substring(currentStart, segmentEnd));
+					// if nothing exists at this level, nothing can exist below it either
+					if (source == null) {
+						return null;
+					}
+					// if it is a container, it is simply a directory with an extension
+					else if (!(source instanceof ResourceContainer)) {
+						current = archiveCache.getArchive(archiveUri, principal, source, archiveResolver);
+						currentStart = segmentEnd + 1;
+					}
+				}
+			}
+			segmentStart = segmentEnd + 1;
+		}
+		return current == null ? null : ResourceUtils.resolve(current, path.substring(currentStart));
+	}
+	
 	@SuppressWarnings("unused")
 	private void activate() {
 		instance = this;
 	}
 	@SuppressWarnings("unused")
 	private void deactivate() {
+		archiveCache.clear();
 		instance = null;
 	}
 }
@@ -0,0 +1,218 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.features.CacheableResource;
+
+/**
+ * A bounded cache of resolved resources, keyed on the normalized uri and the name of the principal.
+ *
+ * Note that resolved resources are normally owned (and closed) by the one who resolved them, see the README.
+ * This cache hands out the same instance to everyone so it should only be enabled for schemes where the resolved resources are stateless or shared anyway (e.g. local files).
+ * That is also why caching is disabled by default and must be explicitly enabled per scheme in the ResourceFactory.
+ */
+public class ResourceResolutionCache {
+
+	private int maxSize;
+	private long timeout;
+
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	// access ordered so the eldest entry is always the least recently used one
+	private Map<CacheKey, CacheEntry> entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+			if (size() > maxSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * @param maxSize the maximum amount of resolved resources that are kept
+	 * @param timeout the amount of milliseconds a resolved resource remains valid, 0 or less means it only expires when evicted or invalidated
+	 */
+	public ResourceResolutionCache(int maxSize, long timeout) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("The cache needs a positive maximum size");
+		}
+		this.maxSize = maxSize;
+		this.timeout = timeout;
+	}
+
+	public Resource get(URI uri, Principal principal) {
+		CacheKey key = new CacheKey(uri, principal);
+		synchronized(entries) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null && entry.isExpired()) {
+				entries.remove(key);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.resource;
+		}
+	}
+
+	public void put(URI uri, Principal principal, Resource resource) {
+		// we don't cache the absence of a resource, it is often checked right before it is created
+		if (resource == null) {
+			return;
+		}
+		// if the resource itself has explicitly disabled caching, respect that
+		if (resource instanceof CacheableResource && !((CacheableResource) resource).isCaching()) {
+			return;
+		}
+		CacheEntry entry = new CacheEntry(resource, timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+		synchronized(entries) {
+			entries.put(new CacheKey(uri, principal), entry);
+		}
+	}
+
+	/**
+	 * Removes the resource at the given uri for all principals.
+	 * Because an explicit invalidation means the backend has changed, any cacheable resource is reset as well.
+	 */
+	public void invalidate(URI uri) throws IOException {
+		reset(remove(normalize(uri), false));
+	}
+
+	/**
+	 * Removes the resource at the given uri and all resources that reside below it.
+	 */
+	public void invalidatePrefix(URI uri) throws IOException {
+		reset(remove(normalize(uri), true));
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	private List<Resource> remove(String uri, boolean includeChildren) {
+		String prefix = uri.endsWith("/") ? uri : uri + "/";
+		List<Resource> removed = new ArrayList<Resource>();
+		synchronized(entries) {
+			Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<CacheKey, CacheEntry> next = iterator.next();
+				String key = next.getKey().uri;
+				if (key.equals(uri) || (includeChildren && key.startsWith(prefix))) {
+					removed.add(next.getValue().resource);
+					iterator.remove();
+				}
+			}
+		}
+		return removed;
+	}
+
+	private void reset(List<Resource> resources) throws IOException {
+		for (Resource resource : resources) {
+			if (resource instanceof CacheableResource) {
+				((CacheableResource) resource).resetCache();
+			}
+		}
+	}
+
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	private static String normalize(URI uri) {
+		return uri.normalize().toString();
+	}
+
+	private static class CacheEntry {
+		private Resource resource;
+		private long expires;
+
+		public CacheEntry(Resource resource, long expires) {
+			this.resource = resource;
+			this.expires = expires;
+		}
+
+		public boolean isExpired() {
+			return expires > 0 && expires < System.currentTimeMillis();
+		}
+	}
+
+	private static class CacheKey {
+		private String uri;
+		private String principal;
+
+		public CacheKey(URI uri, Principal principal) {
+			this.uri = normalize(uri);
+			this.principal = principal == null ? null : principal.getName();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * uri.hashCode() + (principal == null ? 0 : principal.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) object;
+			return uri.equals(other.uri) && (principal == null ? other.principal == null : principal.equals(other.principal));
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.ResourceProperties;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.libs.resources.api.features.PropertiesContainer;
+
+/**
+ * Makes the target tree identical to the source tree, only transferring the files that have changed.
+ * A file is considered unchanged if:
+ * - both sides track a hash (ContentTrackingResource) and it is the same
+ * - otherwise if the sizes (FiniteResource) are the same and the source was not modified after the target was written (TimestampedResource)
+ * - otherwise, if checksums are enabled, if the content has the same hash
+ * If there is not enough information to decide, the file is transferred.
+ *
+ * The trees are walked on the calling thread while the comparisons and transfers are done by a bounded pool of workers, like the ResourceCopier.
+ * Failures do not abort the sync, they are part of the report. Directories are created as needed and only reported when they are deleted or replace a file.
+ */
+public class ResourceSynchronizer {
+
+	public enum ChangeType {
+		ADDED,
+		UPDATED,
+		DELETED
+	}
+
+	private int concurrency = Runtime.getRuntime().availableProcessors();
+	private boolean delete, checksum, dryRun;
+
+	/**
+	 * Synchronizes the contents of the source container with the contents of the target container
+	 */
+	public SyncReport sync(ResourceContainer<?> source, ManageableContainer<?> target) throws IOException {
+		SyncReport report = new SyncReport();
+		long started = System.currentTimeMillis();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(concurrency * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			walk(executor, report, source, target, null);
+		}
+		finally {
+			executor.shutdown();
+			ResourceUtils.awaitTermination(executor);
+		}
+		report.duration = System.currentTimeMillis() - started;
+		return report;
+	}
+
+	// in a dry run a missing target directory is null
+	private void walk(ThreadPoolExecutor executor, final SyncReport report, ResourceContainer<?> source, final ManageableContainer<?> target, String path) {
+		Set<String> names = new HashSet<String>();
+		// if the backends can list the metadata of all children at once, we don't have to ask every child separately
+		final Map<String, ResourceProperties> sourceProperties = getChildProperties(source);
+		final Map<String, ResourceProperties> targetProperties = getChildProperties(target);
+		// the file tasks of this directory create children in the target, list it before any of them are submitted
+		List<Resource> existingChildren = new ArrayList<Resource>();
+		if (delete && target != null) {
+			for (Resource child : target) {
+				existingChildren.add(child);
+			}
+		}
+		for (final Resource child : source) {
+			names.add(child.getName());
+			final String childPath = path == null ? child.getName() : path + "/" + child.getName();
+			final Resource existing = target == null ? null : target.getChild(child.getName());
+			if (child instanceof ResourceContainer) {
+				ManageableContainer<?> directory = null;
+				try {
+					if (existing instanceof ResourceContainer) {
+						directory = (ManageableContainer<?>) existing;
+					}
+					// a file has become a directory, this is reported as a single update of the path
+					else if (existing != null) {
+						if (!dryRun) {
+							target.delete(existing.getName());
+						}
+						report.updated.incrementAndGet();
+						report.changes.put(childPath, ChangeType.UPDATED);
+					}
+					if (directory == null && !dryRun) {
+						directory = (ManageableContainer<?>) target.create(child.getName(), Resource.CONTENT_TYPE_DIRECTORY);
+					}
+				}
+				catch (Exception e) {
+					report.failures.put(childPath, e);
+					continue;
+				}
+				walk(executor, report, (ResourceContainer<?>) child, directory, childPath);
+			}
+			else if (child instanceof ReadableResource) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							syncFile(report, (ReadableResource) child, target, existing, childPath,
+								sourceProperties == null ? null : sourceProperties.get(child.getName()),
+								targetProperties == null ? null : targetProperties.get(child.getName()));
+						}
+						catch (Exception e) {
+							report.failures.put(childPath, e);
+						}
+					}
+				});
+			}
+			else {
+				report.failures.put(childPath, new IOException("Could not synchronize: " + child.getName()));
+			}
+		}
+		for (Resource child : existingChildren) {
+			if (!names.contains(child.getName())) {
+				String childPath = path == null ? child.getName() : path + "/" + child.getName();
+				try {
+					delete(report, target, child.getName(), childPath);
+				}
+				catch (Exception e) {
+					report.failures.put(childPath, e);
+				}
+			}
+		}
+	}
+
+	private void delete(SyncReport report, ManageableContainer<?> target, String name, String path) throws IOException {
+		if (!dryRun) {
+			target.delete(name);
+		}
+		report.deleted.incrementAndGet();
+		report.changes.put(path, ChangeType.DELETED);
+	}
+
+	private static Map<String, ResourceProperties> getChildProperties(ResourceContainer<?> container) {
+		if (container instanceof PropertiesContainer) {
+			try {
+				Map<String, ResourceProperties> properties = new HashMap<String, ResourceProperties>();
+				for (ResourceProperties child : ((PropertiesContainer<?>) container).getChildProperties()) {
+					properties.put(child.getName(), child);
+				}
+				return properties;
+			}
+			catch (IOException e) {
+				// the children themselves are asked instead
+			}
+		}
+		return null;
+	}
+
+	private void syncFile(SyncReport report, ReadableResource source, ManageableContainer<?> target, Resource existing, String path, ResourceProperties sourceProperties, ResourceProperties targetProperties) throws IOException {
+		boolean replaced = false;
+		// a directory has become a file, this is reported as a single update of the path
+		if (existing instanceof ResourceContainer) {
+			if (!dryRun) {
+				target.delete(existing.getName());
+			}
+			existing = null;
+			replaced = true;
+		}
+		else if (existing != null && !isModified(source, existing, sourceProperties, targetProperties)) {
+			report.unchanged.incrementAndGet();
+			return;
+		}
+		if (!dryRun && ResourceUtils.copyByHash(source, target, source.getName(), existing) == null) {
+			Resource child = existing == null ? target.create(source.getName(), ResourceUtils.getContentType(source)) : existing;
+			report.bytes.addAndGet(ResourceUtils.copyContent(source, (WritableResource) child));
+		}
+		boolean added = existing == null && !replaced;
+		(added ? report.added : report.updated).incrementAndGet();
+		report.changes.put(path, added ? ChangeType.ADDED : ChangeType.UPDATED);
+	}
+
+	// the properties are used when the backend listed them in bulk, otherwise the resources themselves are asked
+	private boolean isModified(Resource source, Resource target, ResourceProperties sourceProperties, ResourceProperties targetProperties) throws IOException {
+		String sourceHash = ContentIndex.getTrackedHash(source);
+		String targetHash = ContentIndex.getTrackedHash(target);
+		if (sourceHash != null && targetHash != null) {
+			return !sourceHash.equals(targetHash);
+		}
+		Long sourceSize = getSize(source, sourceProperties);
+		Long targetSize = getSize(target, targetProperties);
+		if (sourceSize != null && targetSize != null && !sourceSize.equals(targetSize)) {
+			return true;
+		}
+		Date sourceModified = getLastModified(source, sourceProperties);
+		Date targetModified = getLastModified(target, targetProperties);
+		if (sourceModified != null && targetModified != null) {
+			return sourceModified.after(targetModified);
+		}
+		if (checksum && target instanceof ReadableResource) {
+			return !ContentIndex.hash((ReadableResource) source, ContentIndex.DEFAULT_ALGORITHM).equals(ContentIndex.hash((ReadableResource) target, ContentIndex.DEFAULT_ALGORITHM));
+		}
+		return true;
+	}
+
+	private static Long getSize(Resource resource, ResourceProperties properties) {
+		if (properties != null && properties.getSize() != null) {
+			return properties.getSize();
+		}
+		return resource instanceof FiniteResource ? ((FiniteResource) resource).getSize() : null;
+	}
+
+	private static Date getLastModified(Resource resource, ResourceProperties properties) {
+		if (properties != null && properties.getLastModified() != null) {
+			return properties.getLastModified();
+		}
+		return resource instanceof TimestampedResource ? ((TimestampedResource) resource).getLastModified() : null;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Whether resources in the target that do not exist in the source are deleted
+	 */
+	public boolean isDelete() {
+		return delete;
+	}
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+	/**
+	 * Whether the content of both sides is hashed when the metadata is not enough to decide, this reads both files but avoids writing
+	 */
+	public boolean isChecksum() {
+		return checksum;
+	}
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Whether only the report is generated without changing the target
+	 */
+	public boolean isDryRun() {
+		return dryRun;
+	}
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	public static class SyncReport {
+		private AtomicLong added = new AtomicLong(), updated = new AtomicLong(), deleted = new AtomicLong(), unchanged = new AtomicLong(), bytes = new AtomicLong();
+		private volatile long duration;
+		// sorted on path so the report is deterministic
+		private Map<String, ChangeType> changes = new ConcurrentSkipListMap<String, ChangeType>();
+		private Map<String, Exception> failures = new ConcurrentSkipListMap<String, Exception>();
+
+		public long getAdded() {
+			return added.get();
+		}
+		public long getUpdated() {
+			return updated.get();
+		}
+		public long getDeleted() {
+			return deleted.get();
+		}
+		public long getUnchanged() {
+			return unchanged.get();
+		}
+		public long getBytes() {
+			return bytes.get();
+		}
+		public long getDuration() {
+			return duration;
+		}
+		public Map<String, ChangeType> getChanges() {
+			return Collections.unmodifiableMap(changes);
+		}
+		public Map<String, Exception> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+
+		/**
+		 * The report as a json object with the counters, the changes and the failures
+		 */
+		public String toJSON() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("{\"added\":").append(getAdded())
+				.append(",\"updated\":").append(getUpdated())
+				.append(",\"deleted\":").append(getDeleted())
+				.append(",\"unchanged\":").append(getUnchanged())
+				.append(",\"bytes\":").append(getBytes())
+				.append(",\"duration\":").append(getDuration())
+				.append(",\"changes\":[");
+			boolean first = true;
+			for (Map.Entry<String, ChangeType> change : changes.entrySet()) {
+				builder.append(first ? "" : ",").append("{\"path\":");
+				quote(builder, change.getKey());
+				builder.append(",\"type\":\"").append(change.getValue().name()).append("\"}");
+				first = false;
+			}
+			builder.append("],\"failures\":[");
+			first = true;
+			for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+				builder.append(first ? "" : ",").append("{\"path\":");
+				quote(builder, failure.getKey());
+				builder.append(",\"message\":");
+				quote(builder, failure.getValue().getMessage() == null ? failure.getValue().getClass().getName() : failure.getValue().getMessage());
+				builder.append("}");
+				first = false;
+			}
+			return builder.append("]}").toString();
+		}
+
+		private static void quote(StringBuilder builder, String value) {
+			builder.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+					case '"': builder.append("\\\""); break;
+					case '\\': builder.append("\\\\"); break;
+					case '\n': builder.append("\\n"); break;
+					case '\r': builder.append("\\r"); break;
+					case '\t': builder.append("\\t"); break;
+					default:
+						if (c < 0x20) {
+							builder.append(String.format("\\u%04x", (int) c));
+						}
+						else {
+							builder.append(c);
+						}
+				}
+			}
+			builder.append('"');
+		}
+
+		@Override
+		public String toString() {
+			return "Added " + getAdded() + ", updated " + getUpdated() + ", deleted " + getDeleted() + ", unchanged " + getUnchanged() + " (" + getBytes() + " bytes) in " + getDuration() + "ms, failed " + failures.size();
+		}
+	}
+}
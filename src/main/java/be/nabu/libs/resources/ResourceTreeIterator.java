@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.ResourceFilter;
+import be.nabu.libs.resources.impl.ResourceIgnoreCalculator;
+
+/**
+ * Walks a resource tree depth first (in the same order as ResourceUtils.find()) but only as far as the consumer actually asks.
+ * Containers are only listed when the iterator reaches them.
+ */
+public class ResourceTreeIterator implements Iterator<Resource> {
+
+	private ResourceFilter filter, descend;
+	private int maxDepth;
+	private boolean ignore;
+	private Deque<Level> levels = new ArrayDeque<Level>();
+	private Resource next;
+
+	/**
+	 * @param filter the resources that should be returned, null returns everything
+	 * @param descend the containers that should be descended into, null descends into everything, this allows for pruning entire subtrees
+	 * @param maxDepth the maximum amount of levels to descend, 1 only returns the direct children, -1 is unlimited
+	 * @param ignore whether or not to respect the ignore rules, ignored resources are not returned and ignored containers are not descended into
+	 */
+	public ResourceTreeIterator(ResourceContainer<?> container, ResourceFilter filter, ResourceFilter descend, int maxDepth, boolean ignore) {
+		this.filter = filter;
+		this.descend = descend;
+		this.maxDepth = maxDepth;
+		this.ignore = ignore;
+		if (maxDepth != 0) {
+			levels.push(new Level(container));
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !levels.isEmpty()) {
+			Level level = levels.peek();
+			if (!level.children.hasNext()) {
+				levels.pop();
+				continue;
+			}
+			Resource child = level.children.next();
+			if (child == null || (ignore && !ResourceIgnoreCalculator.accept(level.container, child.getName()))) {
+				continue;
+			}
+			if (filter == null || filter.accept(child)) {
+				next = child;
+			}
+			// the current depth is the amount of levels on the stack
+			if (child instanceof ResourceContainer && (maxDepth < 0 || levels.size() < maxDepth) && (descend == null || descend.accept(child))) {
+				levels.push(new Level((ResourceContainer<?>) child));
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Resource next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Resource result = next;
+		next = null;
+		return result;
+	}
+
+	private static class Level {
+		private ResourceContainer<?> container;
+		private Iterator<? extends Resource> children;
+
+		public Level(ResourceContainer<?> container) {
+			this.container = container;
+			this.children = container.iterator();
+		}
+	}
+}
@@ -22,14 +22,30 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -40,12 +56,19 @@ import be.nabu.libs.resources.api.FiniteResource;
 import be.nabu.libs.resources.api.LocatableResource;
 import be.nabu.libs.resources.api.ManageableContainer;
 import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.RenameableResource;
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.libs.resources.api.ResourceFilter;
 import be.nabu.libs.resources.api.ResourceProperties;
 import be.nabu.libs.resources.api.TimestampedResource;
 import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.libs.resources.api.features.ContentAddressableContainer;
+import be.nabu.libs.resources.api.features.MovableResource;
+import be.nabu.libs.resources.api.features.PropertiesContainer;
+import be.nabu.libs.resources.api.features.ReadableChannelResource;
+import be.nabu.libs.resources.api.features.SeekableResource;
+import be.nabu.libs.resources.api.features.WritableChannelResource;
 import be.nabu.libs.resources.impl.ResourceIgnoreCalculator;
 import be.nabu.libs.resources.impl.ResourcePropertiesImpl;
 import be.nabu.utils.io.ContentTypeMap;
@@ -57,6 +80,9 @@ import be.nabu.utils.io.api.WritableContainer;
 
 public class ResourceUtils {
 
+	// the maximum amount of bytes we ask a channel to transfer in one call
+	private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
 	public static ResourceProperties properties(Resource resource) {
 		return properties(resource, null);
 	}
@@ -123,6 +149,40 @@ public class ResourceUtils {
 		return properties;
 	}
 	
+	/**
+	 * The properties of all the children of the container, in a single call if the container supports it
+	 */
+	public static List<ResourceProperties> childProperties(ResourceContainer<?> container) throws IOException {
+		if (container instanceof PropertiesContainer) {
+			return ((PropertiesContainer<?>) container).getChildProperties();
+		}
+		List<ResourceProperties> properties = new ArrayList<ResourceProperties>();
+		// the uri of the parent is only calculated once
+		URI parent = getURI(container);
+		for (Resource child : container) {
+			properties.add(properties(child, parent));
+		}
+		return properties;
+	}
+	
+	/**
+	 * Waits for the workers of a shut down executor to finish, if the wait is interrupted the workers are interrupted as well
+	 */
+	static void awaitTermination(ExecutorService executor) throws InterruptedIOException {
+		try {
+			boolean terminated = false;
+			while (!terminated) {
+				// the tasks are bounded by the resources they process, we check in regularly rather than picking an arbitrary deadline
+				terminated = executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+		}
+		catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the workers to finish");
+		}
+	}
+	
 	public static ReadableResource wrapReadable(byte [] bytes, int offset, int length) {
 		return new ReadableByteResource(bytes, offset, length);
 	}
@@ -138,6 +198,79 @@ public class ResourceUtils {
 		return result;
 	}
 	
+	/**
+	 * Lazily walks the tree, unlike find() nothing is buffered and the walk stops as soon as the stream is no longer consumed.
+	 */
+	public static Stream<Resource> stream(ResourceContainer<?> container, ResourceFilter filter, boolean recursive) {
+		return stream(container, filter, null, recursive ? -1 : 1, false);
+	}
+	
+	/**
+	 * @see ResourceTreeIterator
+	 */
+	public static Stream<Resource> stream(ResourceContainer<?> container, ResourceFilter filter, ResourceFilter descend, int maxDepth, boolean ignore) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterate(container, filter, descend, maxDepth, ignore), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	public static Iterator<Resource> iterate(ResourceContainer<?> container, ResourceFilter filter, ResourceFilter descend, int maxDepth, boolean ignore) {
+		return new ResourceTreeIterator(container, filter, descend, maxDepth, ignore);
+	}
+	
+	/**
+	 * Finds resources in parallel, each subdirectory is searched in its own task.
+	 * The result is in the same order as the sequential find(), the filter must however be thread safe.
+	 * 
+	 * @param maxDepth the maximum amount of levels to descend, 1 only checks the direct children, -1 is unlimited
+	 * @param parallelism the maximum amount of threads that are used
+	 */
+	public static List<Resource> find(ResourceContainer<?> container, ResourceFilter filter, int maxDepth, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			return find(container, filter, maxDepth, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+	
+	public static List<Resource> find(ResourceContainer<?> container, ResourceFilter filter, int maxDepth, ForkJoinPool pool) {
+		return pool.invoke(new FindTask(container, filter, 1, maxDepth));
+	}
+	
+	private static class FindTask extends RecursiveTask<List<Resource>> {
+		private static final long serialVersionUID = 1L;
+		private ResourceContainer<?> container;
+		private ResourceFilter filter;
+		private int depth, maxDepth;
+		
+		public FindTask(ResourceContainer<?> container, ResourceFilter filter, int depth, int maxDepth) {
+			this.container = container;
+			this.filter = filter;
+			this.depth = depth;
+			this.maxDepth = maxDepth;
+		}
+
+		@Override
+		protected List<Resource> compute() {
+			// contains either accepted resources or forked tasks for subdirectories, in the order they were encountered
+			List<Object> parts = new ArrayList<Object>();
+			for (Resource child : container) {
+				if (filter.accept(child))
+					parts.add(child);
+				if (child instanceof ResourceContainer && (maxDepth < 0 || depth < maxDepth))
+					parts.add(new FindTask((ResourceContainer<?>) child, filter, depth + 1, maxDepth).fork());
+			}
+			List<Resource> result = new ArrayList<Resource>();
+			for (Object part : parts) {
+				if (part instanceof FindTask)
+					result.addAll(((FindTask) part).join());
+				else
+					result.add((Resource) part);
+			}
+			return result;
+		}
+	}
+	
 	public static Resource touch(URI uri, Principal principal) throws IOException {
 		ManageableContainer<?> parent = (ManageableContainer<?>) mkdir(URIUtils.getParent(uri), principal);
 		String name = URIUtils.getName(uri);
@@ -314,46 +447,109 @@ public class ResourceUtils {
 	}
 	
 	public static String getPath(Resource resource) {
-		// there is no parent
-		if (resource.getParent() == null) {
-			if (resource.getName() == null || resource.getName().equals(""))
-				return "/";
-			else
-				return "/" + resource.getName();
+		return getPath(resource, null);
+	}
+	
+	/**
+	 * The cache is used to look up (and store) the paths of the resource and its ancestors.
+	 * This is only correct if the tree does not change (e.g. no renames or moves) for as long as the cache is used.
+	 */
+	public static String getPath(Resource resource, Map<Resource, String> cache) {
+		// collect the ancestors up to the root or the first one we already know the path of
+		List<Resource> chain = new ArrayList<Resource>();
+		String known = null;
+		Resource current = resource;
+		while (current != null) {
+			if (cache != null) {
+				known = cache.get(current);
+				if (known != null) {
+					break;
+				}
+			}
+			chain.add(current);
+			current = current.getParent();
+		}
+		StringBuilder builder = new StringBuilder();
+		int i = chain.size() - 1;
+		if (known != null) {
+			builder.append(known);
 		}
 		else {
-			String parentPath = ResourceUtils.getPath(resource.getParent());
-			if (parentPath.endsWith("/"))
-				parentPath = parentPath.substring(0, parentPath.length() - 1);
-			return parentPath + "/" + resource.getName();
+			// the root
+			Resource root = chain.get(i--);
+			builder.append('/');
+			if (root.getName() != null) {
+				builder.append(root.getName());
+			}
+			if (cache != null) {
+				cache.put(root, builder.toString());
+			}
 		}
+		for (; i >= 0; i--) {
+			if (builder.charAt(builder.length() - 1) == '/') {
+				builder.setLength(builder.length() - 1);
+			}
+			builder.append('/').append(chain.get(i).getName());
+			if (cache != null) {
+				cache.put(chain.get(i), builder.toString());
+			}
+		}
+		return builder.toString();
 	}
 	
 	public static URI getURI(Resource resource) {
-		if (resource instanceof LocatableResource)
-			return ((LocatableResource) resource).getUri();
-		else if (resource != null && resource.getParent() != null) {
-			URI parent = getURI(resource.getParent());
-			if (parent != null) {
-				try {
-					String parentPath = parent.toString();
-					if (parentPath.endsWith("/"))
-						parentPath = parentPath.substring(0, parentPath.length() - 1);
-					return new URI(parentPath + "/" + resource.getName());
-				}
-				catch (URISyntaxException e) {
-					throw new RuntimeException(e);
-				}
+		// collect the names up to the first resource that knows its own location
+		List<String> names = new ArrayList<String>();
+		while (resource != null && !(resource instanceof LocatableResource)) {
+			names.add(resource.getName());
+			resource = resource.getParent();
+		}
+		if (resource == null) {
+			return null;
+		}
+		URI uri = ((LocatableResource) resource).getUri();
+		if (uri == null || names.isEmpty()) {
+			return uri;
+		}
+		StringBuilder builder = new StringBuilder(uri.toString());
+		for (int i = names.size() - 1; i >= 0; i--) {
+			if (builder.length() > 0 && builder.charAt(builder.length() - 1) == '/') {
+				builder.setLength(builder.length() - 1);
 			}
+			builder.append('/').append(names.get(i));
+		}
+		try {
+			return URIUtils.newURI(builder.toString());
+		}
+		catch (URISyntaxException e) {
+			throw new RuntimeException(e);
 		}
-		return null;
 	}
 	
 	public static Resource rename(Resource original, String name) throws IOException {
-		ManageableContainer<?> parent = (ManageableContainer<?>) original.getParent();
-		Resource renamed = copy(original, parent, name);
-		parent.delete(original.getName());
-		return renamed;
+		return move(original, original.getParent(), name);
+	}
+	
+	/**
+	 * Moves the resource to the target container under the given name.
+	 * If the backend supports it, this is done natively (RenameableResource, MovableResource), otherwise the resource is copied and the original deleted.
+	 */
+	public static Resource move(Resource original, ResourceContainer<?> target, String name) throws IOException {
+		ResourceContainer<?> parent = original.getParent();
+		if (parent == target && original instanceof RenameableResource) {
+			((RenameableResource) original).rename(name);
+			Resource renamed = target.getChild(name);
+			return renamed == null ? original : renamed;
+		}
+		if (original instanceof MovableResource) {
+			Resource moved = ((MovableResource) original).move(target, name);
+			if (moved != null) {
+				return moved;
+			}
+		}
+		Resource copied = copy(original, (ManageableContainer<?>) target, name);
+		((ManageableContainer<?>) parent).delete(original.getName());
+		return copied;
 	}
 	
 	public static Resource copy(Resource original, ManageableContainer<?> target) throws IOException {
@@ -384,35 +580,157 @@ public class ResourceUtils {
 			if (!overwrite && child != null) {
 				throw new IOException("The target '" + newName + "' already exists");
 			}
-			String contentType = original.getContentType();
-			if (contentType == null) {
-				contentType = URLConnection.guessContentTypeFromName(original.getName());
-				if (contentType == null) {
-					contentType = "application/octet-stream";
+			Resource linked = copyByHash(original, target, newName, child);
+			if (linked != null) {
+				result = linked;
+			}
+			else {
+				if (child == null) {
+					child = target.create(newName, getContentType(original));
 				}
+				copyContent((ReadableResource) original, (WritableResource) child);
+				result = child;
 			}
-			if (child == null) {
-				child = target.create(newName, contentType);
+		}
+		else {
+			throw new IOException("Could not copy: " + original.getName());
+		}
+		return result;
+	}
+	
+	/**
+	 * Tries to copy a file without transferring its content, this is possible if the original tracks its hash and the target already has that content.
+	 * Either the existing child already has the same hash or the target is content addressable and the hash exists somewhere in it.
+	 * 
+	 * @return the resulting resource or null if the content has to be copied
+	 */
+	static Resource copyByHash(Resource original, ManageableContainer<?> target, String name, Resource existing) throws IOException {
+		String hash = ContentIndex.getTrackedHash(original);
+		if (hash == null) {
+			return null;
+		}
+		else if (existing != null && hash.equals(ContentIndex.getTrackedHash(existing))) {
+			return existing;
+		}
+		// linking fails if the content is not (or no longer) there
+		else if (target instanceof ContentAddressableContainer) {
+			return ((ContentAddressableContainer<?>) target).link(name, getContentType(original), hash);
+		}
+		return null;
+	}
+	
+	static String getContentType(Resource original) {
+		String contentType = original.getContentType();
+		if (contentType == null) {
+			contentType = URLConnection.guessContentTypeFromName(original.getName());
+			if (contentType == null) {
+				contentType = "application/octet-stream";
 			}
-			ReadableContainer<ByteBuffer> readable = ((ReadableResource) original).getReadable();
+		}
+		return contentType;
+	}
+	
+	/**
+	 * Copies the content of one resource to another.
+	 * 
+	 * @return the amount of bytes that were copied
+	 */
+	public static long copyContent(ReadableResource original, WritableResource target) throws IOException {
+		// if both sides can work with channels, we can let the operating system do the copying
+		if (original instanceof ReadableChannelResource && target instanceof WritableChannelResource) {
+			ReadableByteChannel input = ((ReadableChannelResource) original).getReadableChannel();
 			try {
-				WritableContainer<ByteBuffer> writable = new ResourceWritableContainer((WritableResource) child);
+				WritableByteChannel output = ((WritableChannelResource) target).getWritableChannel();
 				try {
-					IOUtils.copyBytes(readable, writable);
+					return transfer(input, output);
 				}
 				finally {
-					writable.close();
+					try {
+						output.close();
+					}
+					finally {
+						close(target);
+					}
 				}
 			}
 			finally {
-				readable.close();
+				input.close();
+			}
+		}
+		ReadableContainer<ByteBuffer> readable = original.getReadable();
+		try {
+			CountingReadableContainer counting = new CountingReadableContainer(readable);
+			WritableContainer<ByteBuffer> writable = new ResourceWritableContainer(target);
+			try {
+				IOUtils.copyBytes(counting, writable);
+			}
+			finally {
+				writable.close();
+			}
+			return counting.count;
+		}
+		finally {
+			readable.close();
+		}
+	}
+	
+	private static long transfer(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+		long total = 0;
+		if (input instanceof FileChannel) {
+			FileChannel file = (FileChannel) input;
+			long position = file.position();
+			long size = file.size();
+			// transferTo is not guaranteed to transfer everything in one go
+			while (position + total < size) {
+				long transferred = file.transferTo(position + total, size - position - total, output);
+				// the file may have been truncated in the meantime
+				if (transferred <= 0) {
+					break;
+				}
+				total += transferred;
+			}
+		}
+		else if (output instanceof FileChannel) {
+			FileChannel file = (FileChannel) output;
+			long position = file.position();
+			long transferred;
+			// for a blocking input channel, transferFrom only transfers less than requested at the end of the stream
+			while ((transferred = file.transferFrom(input, position + total, TRANSFER_SIZE)) > 0) {
+				total += transferred;
 			}
-			result = child;
 		}
 		else {
-			throw new IOException("Could not copy: " + original.getName());
+			java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(8192);
+			while (input.read(buffer) >= 0 || buffer.position() > 0) {
+				buffer.flip();
+				total += output.write(buffer);
+				buffer.compact();
+			}
+		}
+		return total;
+	}
+	
+	private static class CountingReadableContainer implements ReadableContainer<ByteBuffer> {
+		private ReadableContainer<ByteBuffer> parent;
+		private long count;
+		
+		public CountingReadableContainer(ReadableContainer<ByteBuffer> parent) {
+			this.parent = parent;
+		}
+		
+		@Override
+		public long read(ByteBuffer buffer) throws IOException {
+			long read = parent.read(buffer);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			parent.close();
 		}
-		return result;
 	}
 	
 	public static void close(Resource resource) throws IOException {
@@ -432,6 +750,15 @@ public class ResourceUtils {
 		zip(resource, output, !includeRoot, null, null);
 	}
 	
+	/**
+	 * Creates the same zip as the other zip methods but compresses the entries on the given amount of threads
+	 */
+	public static void zip(Resource resource, OutputStream output, boolean includeRoot, Predicate<Resource> acceptor, int concurrency) throws IOException {
+		ParallelZipWriter writer = new ParallelZipWriter();
+		writer.setConcurrency(concurrency);
+		writer.zip(resource, output, includeRoot, acceptor);
+	}
+
 	private static void zip(Resource resource, ZipOutputStream output, boolean isRoot, String path, Predicate<Resource> acceptor) throws IOException {
 		String childPath = path == null ? resource.getName() : path + "/" + resource.getName();
 		if (resource instanceof ReadableResource) {
@@ -468,22 +795,56 @@ public class ResourceUtils {
 		}
 	}
 	
+	/**
+	 * Only extracts the entries whose path matches the glob (e.g. "docs/*.html")
+	 */
+	public static void unzip(Resource zipResource, ResourceContainer<?> target, String glob) throws IOException {
+		unzip(zipResource, target, ResourceIgnoreCalculator.glob(glob));
+	}
+	
+	/**
+	 * Only extracts the entries whose path is accepted by the selector.
+	 * If the resource is seekable, only the central directory and the selected entries are read, otherwise the zip is scanned.
+	 */
+	public static void unzip(Resource zipResource, ResourceContainer<?> target, Predicate<String> selector) throws IOException {
+		if (zipResource instanceof SeekableResource) {
+			ZipIndex index = new ZipIndex(((SeekableResource) zipResource).getSeekableChannel());
+			try {
+				index.extract(target, selector);
+			}
+			finally {
+				index.close();
+			}
+		}
+		else {
+			ReadableContainer<ByteBuffer> readable = ((ReadableResource) zipResource).getReadable();
+			try {
+				unzip(new ZipInputStream(new BufferedInputStream(IOUtils.toInputStream(readable))), target, selector);
+			}
+			finally {
+				readable.close();
+			}
+		}
+	}
+	
 	public static void unzip(ZipInputStream input, ResourceContainer<?> target) throws IOException {
+		unzip(input, target, null);
+	}
+	
+	public static void unzip(ZipInputStream input, ResourceContainer<?> target, Predicate<String> selector) throws IOException {
+		Map<String, ResourceContainer<?>> directories = new HashMap<String, ResourceContainer<?>>();
 		ZipEntry entry;
 		while ((entry = input.getNextEntry()) != null) {
-			String name = entry.getName();
-			if (name.endsWith("/")) {
+			if (entry.getName().endsWith("/")) {
 				continue;
 			}
-			if (name.startsWith("/")) {
-				name = name.substring(1);
-			}
-			ResourceContainer<?> parent = name.contains("/") ? mkdirs(target, name.replaceAll("/[^/]+$", "")) : target;
-			String contentType = URLConnection.guessContentTypeFromName(name);
-			if (contentType == null) {
-				contentType = "application/octet-stream";
+			String name = ResourceExtractor.getSafePath(entry.getName());
+			if (name.isEmpty() || (selector != null && !selector.test(name))) {
+				continue;
 			}
-			Resource create = ((ManageableContainer<?>) parent).create(name.contains("/") ? name.replaceAll(".*/([^/]+)$", "$1") : name , contentType);
+			int index = name.lastIndexOf('/');
+			ResourceContainer<?> parent = index < 0 ? target : ResourceExtractor.getDirectory(directories, target, name.substring(0, index));
+			Resource create = ((ManageableContainer<?>) parent).create(name.substring(index + 1), ResourceExtractor.getContentType(name));
 			WritableContainer<ByteBuffer> writable = ((WritableResource) create).getWritable();
 			try {
 				IOUtils.copyBytes(IOUtils.wrap(input), writable);
@@ -493,4 +854,23 @@ public class ResourceUtils {
 			}
 		}
 	}
+	
+	/**
+	 * Makes the target identical to the source, only transferring what has changed
+	 * @param delete whether resources in the target that are not in the source are deleted
+	 */
+	public static ResourceSynchronizer.SyncReport sync(ResourceContainer<?> source, ManageableContainer<?> target, boolean delete) throws IOException {
+		ResourceSynchronizer synchronizer = new ResourceSynchronizer();
+		synchronizer.setDelete(delete);
+		return synchronizer.sync(source, target);
+	}
+	
+	/**
+	 * Extracts the zip using the given amount of threads
+	 */
+	public static ResourceExtractor.ExtractReport unzip(Resource zipResource, ResourceContainer<?> target, int concurrency) throws IOException {
+		ResourceExtractor extractor = new ResourceExtractor();
+		extractor.setConcurrency(concurrency);
+		return extractor.extract(zipResource, target);
+	}
 }
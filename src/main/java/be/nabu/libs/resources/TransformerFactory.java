@@ -20,6 +20,7 @@ package be.nabu.libs.resources;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,19 +33,30 @@ import be.nabu.libs.resources.api.TransformerResolver;
 
 public class TransformerFactory {
 
-	private static TransformerFactory instance;
+	private static volatile TransformerFactory instance;
 	
 	public static TransformerFactory getInstance() {
-		if (instance == null)
-			instance = new TransformerFactory();
+		if (instance == null) {
+			synchronized(TransformerFactory.class) {
+				if (instance == null) {
+					instance = new TransformerFactory();
+				}
+			}
+		}
 		return instance;
 	}
 	
-	private Map<String, TransformerResolver> resolvers = new LinkedHashMap<String, TransformerResolver>();
+	// copy-on-write registry, lookups read the current immutable snapshot without locking
+	private volatile Map<String, TransformerResolver> resolvers = Collections.emptyMap();
 	
 	public void setTransformerResolver(String contentType, TransformerResolver resolver, boolean overrideExisting) {
-		if (overrideExisting || !resolvers.containsKey(contentType))
-			resolvers.put(contentType, resolver);
+		synchronized(this) {
+			if (overrideExisting || !resolvers.containsKey(contentType)) {
+				Map<String, TransformerResolver> resolvers = new LinkedHashMap<String, TransformerResolver>(this.resolvers);
+				resolvers.put(contentType, resolver);
+				this.resolvers = Collections.unmodifiableMap(resolvers);
+			}
+		}
 	}
 	
 	public void addTransformerResolver(TransformerResolver resolver) {
@@ -52,9 +64,19 @@ public class TransformerFactory {
 			setTransformerResolver(contentType, resolver, false);
 	}
 	
+	// like the add method, an existing resolver for a content type is not overridden
+	private static void register(Map<String, TransformerResolver> resolvers, TransformerResolver resolver) {
+		for (String contentType : resolver.getSupportedContentTypes()) {
+			resolvers.putIfAbsent(contentType, resolver);
+		}
+	}
+	
 	public void removeTransformerResolver(TransformerResolver resolver) {
-		for (String contentType : resolvers.keySet())
-			resolvers.remove(contentType);
+		synchronized(this) {
+			Map<String, TransformerResolver> resolvers = new LinkedHashMap<String, TransformerResolver>(this.resolvers);
+			resolvers.values().removeIf(registered -> registered == resolver);
+			this.resolvers = Collections.unmodifiableMap(resolvers);
+		}
 	}
 	
 	public TransformerResolver getResolver(String scheme) {
@@ -67,44 +89,54 @@ public class TransformerFactory {
 	
 	@SuppressWarnings("unchecked")
 	private Map<String, TransformerResolver> getResolvers() {
-		if (resolvers.isEmpty()) {
-			try {
-				// let's try this with custom service loading based on a configuration
-				Class<?> clazz = getClass().getClassLoader().loadClass("be.nabu.utils.services.ServiceLoader");
-				Method declaredMethod = clazz.getDeclaredMethod("load", Class.class);
-				for (TransformerResolver resolver : (List<TransformerResolver>) declaredMethod.invoke(null, TransformerResolver.class)) {
-					addTransformerResolver(resolver);
-				}
-			}
-			catch (ClassNotFoundException e) {
-				// ignore, the framework is not present
-			}
-			catch (NoSuchMethodException e) {
-				// corrupt framework?
-				throw new RuntimeException(e);
-			}
-			catch (SecurityException e) {
-				throw new RuntimeException(e);
-			}
-			catch (IllegalAccessException e) {
-				// ignore
-			}
-			catch (InvocationTargetException e) {
-				// ignore
-			}
-			if (resolvers.isEmpty()) {
-				ServiceLoader<TransformerResolver> serviceLoader = ServiceLoader.load(TransformerResolver.class);
-				for (TransformerResolver resolver : serviceLoader) {
-					addTransformerResolver(resolver);
+		Map<String, TransformerResolver> current = resolvers;
+		if (current.isEmpty()) {
+			synchronized(this) {
+				if (this.resolvers.isEmpty()) {
+					// fill a local map and publish it once, lock-free readers should never see a partially loaded registry
+					Map<String, TransformerResolver> resolvers = new LinkedHashMap<String, TransformerResolver>();
+					try {
+						// let's try this with custom service loading based on a configuration
+						Class<?> clazz = getClass().getClassLoader().loadClass("be.nabu.utils.services.ServiceLoader");
+						Method declaredMethod = clazz.getDeclaredMethod("load", Class.class);
+						for (TransformerResolver resolver : (List<TransformerResolver>) declaredMethod.invoke(null, TransformerResolver.class)) {
+							register(resolvers, resolver);
+						}
+					}
+					catch (ClassNotFoundException e) {
+						// ignore, the framework is not present
+					}
+					catch (NoSuchMethodException e) {
+						// corrupt framework?
+						throw new RuntimeException(e);
+					}
+					catch (SecurityException e) {
+						throw new RuntimeException(e);
+					}
+					catch (IllegalAccessException e) {
+						// ignore
+					}
+					catch (InvocationTargetException e) {
+						// ignore
+					}
+					if (resolvers.isEmpty()) {
+						ServiceLoader<TransformerResolver> serviceLoader = ServiceLoader.load(TransformerResolver.class);
+						for (TransformerResolver resolver : serviceLoader) {
+							register(resolvers, resolver);
+						}
+					}
+					this.resolvers = Collections.unmodifiableMap(resolvers);
 				}
+				current = this.resolvers;
 			}
 		}
-		return resolvers;
+		return current;
 	}
 	
 	public Transformer newArchive(Resource resource) throws IOException {
-		if (getResolvers().containsKey(resource.getContentType())) {
-			Transformer transformer = resolvers.get(resource.getContentType()).newInstance();
+		TransformerResolver resolver = getResolvers().get(resource.getContentType());
+		if (resolver != null) {
+			Transformer transformer = resolver.newInstance();
 			transformer.setSource(resource);
 			return transformer;
 		}
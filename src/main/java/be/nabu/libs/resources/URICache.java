@@ -0,0 +1,163 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of parsed URIs, this prevents the same strings from being parsed over and over again.
+ * URIs are immutable so the same instance can safely be shared.
+ */
+public class URICache {
+
+	// a rough estimate of the memory used by a map entry and a parsed uri, excluding the strings
+	private static final int ENTRY_OVERHEAD = 200;
+
+	private int maxSize;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+	// the amount of characters in the keys and the uris
+	private long characters;
+
+	// access ordered so the eldest entry is always the least recently used one
+	private Map<String, URI> entries = new LinkedHashMap<String, URI>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, URI> eldest) {
+			if (size() > maxSize) {
+				evictions.incrementAndGet();
+				characters -= getCharacters(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	public URICache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("The cache needs a positive maximum size");
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * The same as new URI(uri)
+	 */
+	public URI get(String uri) throws URISyntaxException {
+		URI cached = lookup(uri);
+		if (cached == null) {
+			cached = put(uri, new URI(uri));
+		}
+		return cached;
+	}
+
+	/**
+	 * The same as new URI(scheme, authority, path, query, fragment)
+	 */
+	public URI get(String scheme, String authority, String path, String query, String fragment) throws URISyntaxException {
+		// the components are separated by a character that can not be in a valid uri, null is differentiated from empty
+		StringBuilder builder = new StringBuilder();
+		for (String component : new String[] { scheme, authority, path, query, fragment }) {
+			builder.append(component == null ? "\u0001" : component).append('\u0000');
+		}
+		String key = builder.toString();
+		URI cached = lookup(key);
+		if (cached == null) {
+			cached = put(key, new URI(scheme, authority, path, query, fragment));
+		}
+		return cached;
+	}
+
+	private URI lookup(String key) {
+		URI uri;
+		synchronized(entries) {
+			uri = entries.get(key);
+		}
+		(uri == null ? misses : hits).incrementAndGet();
+		return uri;
+	}
+
+	private URI put(String key, URI uri) {
+		synchronized(entries) {
+			// someone else may have parsed it in the meantime
+			URI existing = entries.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			characters += getCharacters(key, uri);
+			entries.put(key, uri);
+		}
+		return uri;
+	}
+
+	private static long getCharacters(String key, URI uri) {
+		// the parsed uri keeps the original string and its components, roughly twice the length
+		return key.length() + 2 * uri.toString().length();
+	}
+
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+			characters = 0;
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getSize() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * A rough estimate of the amount of bytes used by the cached entries
+	 */
+	public long getEstimatedMemory() {
+		synchronized(entries) {
+			return characters * 2 + (long) entries.size() * ENTRY_OVERHEAD;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public double getHitRate() {
+		long hits = getHits(), total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "URICache [size=" + getSize() + "/" + maxSize + ", hitRate=" + getHitRate() + ", evictions=" + getEvictions() + ", memory=" + getEstimatedMemory() + "]";
+	}
+}
@@ -22,8 +22,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -33,6 +32,32 @@ public class URIUtils {
 	
 	private static boolean useJavaURLEncoding = Boolean.parseBoolean(System.getProperty("nabu.url.useJavaEncoding", "true"));
 	
+	// disabled by default
+	private static volatile URICache uriCache = Integer.parseInt(System.getProperty("be.nabu.libs.resources.uriCacheSize", "0")) > 0
+		? new URICache(Integer.parseInt(System.getProperty("be.nabu.libs.resources.uriCacheSize")))
+		: null;
+	
+	public static URICache getURICache() {
+		return uriCache;
+	}
+	
+	/**
+	 * Set a cache to reuse the uris built by this class, set to null to disable caching
+	 */
+	public static void setURICache(URICache uriCache) {
+		URIUtils.uriCache = uriCache;
+	}
+	
+	static URI newURI(String uri) throws URISyntaxException {
+		URICache cache = uriCache;
+		return cache == null ? new URI(uri) : cache.get(uri);
+	}
+	
+	static URI newURI(String scheme, String authority, String path, String query, String fragment) throws URISyntaxException {
+		URICache cache = uriCache;
+		return cache == null ? new URI(scheme, authority, path, query, fragment) : cache.get(scheme, authority, path, query, fragment);
+	}
+	
 	public static String encodeURL(String uri) {
 		// the standard (since 2005) says that we should use UTF-8 for this
 		// before that it is a bit vague as to which encoding we should use
@@ -65,45 +90,113 @@ public class URIUtils {
 	}
 	
 	public static String encodeURI(String uri, boolean includeEncoded) {
-		if (uri != null) {
-			if (includeEncoded) {
-				uri = uri.replace("%", "%25");
+		return encode(uri, URI_ESCAPES, includeEncoded);
+	}
+	
+	public static String decodeURI(String uri) {
+		return decode(uri, URI_UNESCAPES);
+	}
+	
+	// the escapes for each ascii character, null if it does not need escaping
+	private static final String [] URI_ESCAPES = new String[128], URI_COMPONENT_ESCAPES = new String[128];
+	// the character for each escaped byte, 0 if it is not decoded
+	private static final char [] URI_UNESCAPES = new char[256], URI_COMPONENT_UNESCAPES = new char[256];
+	
+	static {
+		// as per 2.4.3 of RFC 2396 characters "`" (%60) and "\" (%5C) should also be encoded
+		for (char c : "% {}|^[]\\`><\"".toCharArray()) {
+			URI_ESCAPES[c] = URI_COMPONENT_ESCAPES[c] = String.format("%%%02X", (int) c);
+		}
+		for (char c : "/:?&+=#@".toCharArray()) {
+			URI_COMPONENT_ESCAPES[c] = String.format("%%%02X", (int) c);
+		}
+		// the "%" is decoded separately
+		for (char c : " {}|^[]><\"".toCharArray()) {
+			URI_UNESCAPES[c] = URI_COMPONENT_UNESCAPES[c] = c;
+		}
+		for (char c : "/:?&+=#@".toCharArray()) {
+			URI_COMPONENT_UNESCAPES[c] = c;
+		}
+	}
+	
+	private static String encode(String value, String [] escapes, boolean includeEncoded) {
+		if (value == null) {
+			return null;
+		}
+		StringBuilder builder = null;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String escape = c < 128 ? escapes[c] : null;
+			// if we don't include the encoded parts, a "%" that is followed by (uppercase) hex is left alone
+			if (escape != null && c == '%' && !includeEncoded && i + 2 < length && isUpperHex(value.charAt(i + 1)) && isUpperHex(value.charAt(i + 2))) {
+				escape = null;
+			}
+			if (escape != null) {
+				if (builder == null) {
+					builder = new StringBuilder(length + 16);
+					builder.append(value, 0, i);
+				}
+				builder.append(escape);
+			}
+			else if (builder != null) {
+				builder.append(c);
+			}
+		}
+		return builder == null ? value : builder.toString();
+	}
+	
+	/**
+	 * This is compatible with the original implementation which decoded one escape at a time over the entire string.
+	 * Because "%25" was decoded before "%3E", "%3C" and "%22", sequences like "%253E" are decoded twice.
+	 */
+	private static String decode(String value, char [] unescapes) {
+		if (value == null) {
+			return null;
+		}
+		int index = value.indexOf('%');
+		if (index < 0) {
+			return value;
+		}
+		int length = value.length();
+		StringBuilder builder = new StringBuilder(length);
+		builder.append(value, 0, index);
+		for (int i = index; i < length; i++) {
+			char c = value.charAt(i);
+			int decoded = c == '%' ? getEscapedByte(value, i + 1) : -1;
+			if (decoded == '%') {
+				int next = getEscapedByte(value, i + 3);
+				// "%25" followed by "3E", "3C" or "22"
+				if (next == '>' || next == '<' || next == '"') {
+					builder.append((char) next);
+					i += 4;
+				}
+				else {
+					builder.append('%');
+					i += 2;
+				}
+			}
+			else if (decoded >= 0 && unescapes[decoded] != 0) {
+				builder.append(unescapes[decoded]);
+				i += 2;
 			}
 			else {
-				uri = uri.replaceAll("%(?![0-9A-F]{2})", "%25");
+				builder.append(c);
 			}
-			uri = uri.replace(" ", "%20");
-			uri = uri.replace("{", "%7B");
-			uri = uri.replace("}", "%7D");
-			uri = uri.replace("|", "%7C");
-			uri = uri.replace("^", "%5E");
-			uri = uri.replace("[", "%5B");
-			uri = uri.replace("]", "%5D");
-			// as per 2.4.3 of RFC 2396 characters "`" (%60) and "\" (%5C) should also be encoded
-			uri = uri.replace("\\", "%5C");
-			uri = uri.replace("`", "%60");
-			uri = uri.replace(">", "%3E");
-			uri = uri.replace("<", "%3C");
-			uri = uri.replace("\"", "%22");
-		}
-		return uri;
+		}
+		return builder.toString();
 	}
 	
-	public static String decodeURI(String uri) {
-		if (uri != null) {
-			uri = uri.replace("%20", " ");
-			uri = uri.replace("%7B", "{");
-			uri = uri.replace("%7D", "}");
-			uri = uri.replace("%7C", "|");
-			uri = uri.replace("%5E", "^");
-			uri = uri.replace("%5B", "[");
-			uri = uri.replace("%5D", "]");
-			uri = uri.replace("%25", "%");
-			uri = uri.replace("%3E", ">");
-			uri = uri.replace("%3C", "<");
-			uri = uri.replace("%22", "\"");
-		}
-		return uri;
+	// only uppercase hex is decoded
+	private static int getEscapedByte(String value, int offset) {
+		if (offset + 1 < value.length() && isUpperHex(value.charAt(offset)) && isUpperHex(value.charAt(offset + 1))) {
+			return Character.digit(value.charAt(offset), 16) * 16 + Character.digit(value.charAt(offset + 1), 16);
+		}
+		return -1;
+	}
+	
+	private static boolean isUpperHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F');
 	}
 	
 	public static String encodeURIComponent(String uriComponent) {
@@ -188,7 +281,7 @@ public class URIUtils {
 			builder.append("#" + URIUtils.encodeURI(fragment));
 		}
 		try {
-			return new URI(builder.toString());
+			return newURI(builder.toString());
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -197,33 +290,11 @@ public class URIUtils {
 	
 	
 	public static String encodeURIComponent(String uriComponent, boolean includeEncoded) {
-		if (uriComponent != null) {
-			uriComponent = encodeURI(uriComponent, includeEncoded);
-			uriComponent = uriComponent.replace("/", "%2F");
-			uriComponent = uriComponent.replace(":", "%3A");
-			uriComponent = uriComponent.replace("?", "%3F");
-			uriComponent = uriComponent.replace("&", "%26");
-			uriComponent = uriComponent.replace("+", "%2B");
-			uriComponent = uriComponent.replace("=", "%3D");
-			uriComponent = uriComponent.replace("#", "%23");
-			uriComponent = uriComponent.replace("@", "%40");
-		}
-		return uriComponent;
+		return encode(uriComponent, URI_COMPONENT_ESCAPES, includeEncoded);
 	}
 	
 	public static String decodeURIComponent(String uriComponent) {
-		if (uriComponent != null) {
-			uriComponent = uriComponent.replace("%2F", "/");
-			uriComponent = uriComponent.replace("%3A", ":");
-			uriComponent = uriComponent.replace("%3F", "?");
-			uriComponent = uriComponent.replace("%26", "&");
-			uriComponent = uriComponent.replace("%2B", "+");
-			uriComponent = uriComponent.replace("%3D", "=");
-			uriComponent = uriComponent.replace("%23", "#");
-			uriComponent = uriComponent.replace("%40", "@");
-			uriComponent = decodeURI(uriComponent);
-		}
-		return uriComponent;
+		return decode(uriComponent, URI_COMPONENT_UNESCAPES);
 	}
 	
 	public static String decodeHTMLComponent(String htmlComponent) {
@@ -264,36 +335,75 @@ public class URIUtils {
 		}
 	}
 	
+	// only used for paths that contain line terminators, which are treated specially by "." and "$"
+	private static final Pattern TRAILING_SLASHES = Pattern.compile("[/]+$");
+	private static final Pattern LAST_SEGMENT = Pattern.compile("/[^/]+$");
+	private static final Pattern UP_TO_LAST_SLASH = Pattern.compile(".*/");
+	
 	private static String cleanPath(String path) {
-		return path.replaceAll("[/]{2,}", "/");
+		int index = path.indexOf("//");
+		if (index < 0) {
+			return path;
+		}
+		StringBuilder builder = new StringBuilder(path.length());
+		builder.append(path, 0, index + 1);
+		for (int i = index + 1; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c != '/' || path.charAt(i - 1) != '/') {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
 	}
 	
-	public static Map<String, List<String>> getQueryProperties(URI uri) {
-		Map<String, List<String>> parameters = new HashMap<String, List<String>>();
-		if (uri.getQuery() != null) {
-			for (String part : uri.getRawQuery().split("[\\s]*&[\\s]*")) {
-				int index = part.indexOf('=');
-				String key = null;
-				String value = null;
-				if (index < 0)
-					key = part.trim();
-				else {
-					key = part.substring(0, index).trim();
-					value = useJavaURLEncoding
-						? decodeURL(part.substring(index + 1).trim())
-						: decodeURIComponent(URLEncodingToURIEncoding(part.substring(index + 1).trim()));
-				}
-				// decode the key as well in case it contains special characters
-				key = useJavaURLEncoding
-					? decodeURL(key)
-					: decodeURIComponent(URLEncodingToURIEncoding(key));
-				if (!parameters.containsKey(key))
-					parameters.put(key, new ArrayList<String>());
-				if (value != null)
-					parameters.get(key).add(value);
+	private static boolean hasLineTerminator(String path) {
+		for (int i = 0; i < path.length(); i++) {
+			switch (path.charAt(i)) {
+				case '\n':
+				case '\r':
+				case '\u0085':
+				case '\u2028':
+				case '\u2029':
+					return true;
 			}
 		}
-		return parameters;
+		return false;
+	}
+	
+	private static String stripTrailingSlashes(String path) {
+		if (hasLineTerminator(path)) {
+			return TRAILING_SLASHES.matcher(path).replaceAll("");
+		}
+		int end = path.length();
+		while (end > 0 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		return path.substring(0, end);
+	}
+	
+	private static String stripLeadingSlashes(String path) {
+		int start = 0;
+		while (start < path.length() && path.charAt(start) == '/') {
+			start++;
+		}
+		return path.substring(start);
+	}
+	
+	public static Map<String, List<String>> getQueryProperties(URI uri) {
+		return getQueryParameters(uri).toMap();
+	}
+	
+	/**
+	 * A lazy alternative to getQueryProperties(), the query is only parsed as far as necessary.
+	 */
+	public static QueryParameters getQueryParameters(URI uri) {
+		return QueryParameters.parse(uri);
+	}
+	
+	static String decodeQueryPart(String part) {
+		return useJavaURLEncoding
+			? decodeURL(part)
+			: decodeURIComponent(URLEncodingToURIEncoding(part));
 	}
 	
 	public static URI normalize(URI uri) {
@@ -305,8 +415,112 @@ public class URIUtils {
 		}
 	}
 	
+	/**
+	 * Normalizes the path in a single pass: "." segments are removed and ".." segments remove the segment before them.
+	 * If a ".." can not be resolved, an IllegalArgumentException is thrown.
+	 */
 	public static String normalize(String path) {
 		path = cleanPath(path);
+		// "." and "$" treat line terminators specially, keep the regex behavior for them
+		if (hasLineTerminator(path)) {
+			return normalizeWithRegex(path);
+		}
+		path = removeSelfReferences(path);
+		int length = path.length();
+		// a relative path starts with a segment that can not be removed by a ".."
+		int start = path.startsWith("/") ? 0 : path.indexOf('/');
+		if (start < 0) {
+			return path;
+		}
+		// the start and end of each remaining segment (including its leading "/")
+		int [] segments = new int[16];
+		int size = 0;
+		boolean resolved = true;
+		int position = start;
+		while (position < length) {
+			int end = path.indexOf('/', position + 1);
+			if (end < 0) {
+				end = length;
+			}
+			// a trailing slash is not a segment
+			if (end == position + 1 && end == length) {
+				break;
+			}
+			if (end - position == 3 && path.charAt(position + 1) == '.' && path.charAt(position + 2) == '.') {
+				if (size == 0) {
+					resolved = false;
+				}
+				else {
+					// a ".." removes whatever segment came before it, if that is also a "..", the path can not be resolved
+					if (isParentReference(path, segments[(size - 1) * 2], segments[(size - 1) * 2 + 1])) {
+						resolved = false;
+					}
+					size--;
+					position = end;
+					continue;
+				}
+			}
+			if (size * 2 == segments.length) {
+				segments = Arrays.copyOf(segments, segments.length * 2);
+			}
+			segments[size * 2] = position;
+			segments[size * 2 + 1] = end;
+			size++;
+			position = end;
+		}
+		StringBuilder builder = new StringBuilder(length);
+		builder.append(path, 0, start);
+		for (int i = 0; i < size; i++) {
+			builder.append(path, segments[i * 2], segments[i * 2 + 1]);
+		}
+		if (position < length) {
+			builder.append('/');
+		}
+		String result = builder.toString();
+		if (!resolved) {
+			throw new IllegalArgumentException("Can not resolve relative path: " + result);
+		}
+		if (result.equals("/..") || result.equals("/../")) {
+			throw new IllegalArgumentException("Can not resolve relative path");
+		}
+		return result;
+	}
+	
+	private static boolean isParentReference(String path, int start, int end) {
+		return end - start == 3 && path.charAt(start + 1) == '.' && path.charAt(start + 2) == '.';
+	}
+	
+	// the same as replaceAll("/\\.(/|$)", "/"), note that in "/././" only the first "/./" is replaced
+	private static String removeSelfReferences(String path) {
+		int index = path.indexOf("/.");
+		if (index < 0) {
+			return path;
+		}
+		int length = path.length();
+		StringBuilder builder = null;
+		int copied = 0;
+		while (index >= 0) {
+			int next = index + 2;
+			if (next == length || path.charAt(next) == '/') {
+				if (builder == null) {
+					builder = new StringBuilder(length);
+				}
+				builder.append(path, copied, index).append('/');
+				copied = next == length ? length : next + 1;
+				index = path.indexOf("/.", copied);
+			}
+			else {
+				index = path.indexOf("/.", index + 1);
+			}
+		}
+		if (builder == null) {
+			return path;
+		}
+		builder.append(path, copied, length);
+		return builder.toString();
+	}
+	
+	private static String normalizeWithRegex(String path) {
 		// remove all "." references which point to the path itself
 		path = path.replaceAll("/\\.(/|$)", "/");
 
@@ -346,7 +560,7 @@ public class URIUtils {
 				return null;
 			else
 				// first remove any trailing "/", then remove the last bit
-				path = path.replaceAll("[/]+$", "").replaceAll("/[^/]+$", "");
+				path = removeLastSegment(stripTrailingSlashes(path));
 			if (path.equals(""))
 				path = "/";
 			try {
@@ -363,12 +577,12 @@ public class URIUtils {
 		if (path.equals("/") || path.isEmpty())
 			path += name;
 		else
-			path += "/" + name.replaceAll("^[/]+", "");
+			path += "/" + stripLeadingSlashes(name);
 		if (!path.startsWith("/")) {
 			path = "/" + path;
 		}
 		try {
-			return new URI(parent.getScheme(), parent.getAuthority(), path, parent.getQuery(), parent.getFragment());
+			return newURI(parent.getScheme(), parent.getAuthority(), path, parent.getQuery(), parent.getFragment());
 		}
 		catch (URISyntaxException e) {
 			throw new RuntimeException(e);
@@ -391,6 +605,22 @@ public class URIUtils {
 			return null;
 		else
 			// first remove any trailing
-			return path.replaceAll("[/]+$", "").replaceAll(".*/", "");
+			return getLastSegment(stripTrailingSlashes(path));
+	}
+	
+	private static String removeLastSegment(String path) {
+		if (hasLineTerminator(path)) {
+			return LAST_SEGMENT.matcher(path).replaceAll("");
+		}
+		int index = path.lastIndexOf('/');
+		// the segment must not be empty
+		return index < 0 || index == path.length() - 1 ? path : path.substring(0, index);
+	}
+	
+	private static String getLastSegment(String path) {
+		if (hasLineTerminator(path)) {
+			return UP_TO_LAST_SLASH.matcher(path).replaceAll("");
+		}
+		return path.substring(path.lastIndexOf('/') + 1);
 	}
 }
@@ -0,0 +1,351 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Reads the central directory of a zip on a seekable channel, this allows entries to be read directly from their offset without scanning the zip.
+ * Zip64 is supported, encryption and compression methods other than stored and deflated are not.
+ */
+public class ZipIndex implements Closeable {
+
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50, ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50, ZIP64_LOCATOR = 0x07064b50;
+	private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50, LOCAL_HEADER = 0x04034b50;
+	private static final long MAX_INT = 0xFFFFFFFFL;
+
+	private SeekableByteChannel channel;
+	private List<Entry> entries;
+
+	public ZipIndex(SeekableByteChannel channel) throws IOException {
+		this.channel = channel;
+		this.entries = readCentralDirectory();
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public InputStream getInputStream(Entry entry) throws IOException {
+		if ((entry.flags & 1) != 0) {
+			throw new ZipException("Encrypted entries are not supported: " + entry.name);
+		}
+		java.nio.ByteBuffer header = read(entry.offset, 30);
+		if (header.getInt(0) != LOCAL_HEADER) {
+			throw new ZipException("Invalid local header for: " + entry.name);
+		}
+		long start = entry.offset + 30 + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+		InputStream data = new ChannelInputStream(start, entry.compressedSize);
+		if (entry.method == 0) {
+			return verify(entry, data);
+		}
+		else if (entry.method == 8) {
+			return verify(entry, new InflaterInputStream(data, new Inflater(true), 8192) {
+				private boolean eof, closed;
+				@Override
+				protected void fill() throws IOException {
+					if (eof) {
+						throw new EOFException("Unexpected end of zip entry");
+					}
+					len = in.read(buf, 0, buf.length);
+					// the inflater in "nowrap" mode may need an additional dummy byte
+					if (len < 0) {
+						buf[0] = 0;
+						len = 1;
+						eof = true;
+					}
+					inf.setInput(buf, 0, len);
+				}
+				@Override
+				public void close() throws IOException {
+					if (!closed) {
+						closed = true;
+						inf.end();
+						super.close();
+					}
+				}
+			});
+		}
+		throw new ZipException("Unsupported compression method " + entry.method + " for: " + entry.name);
+	}
+
+	/**
+	 * Checks the crc of the uncompressed data once the end of the entry is reached.
+	 */
+	private static InputStream verify(final Entry entry, InputStream input) {
+		return new CheckedInputStream(input, new CRC32()) {
+			private boolean verified;
+			@Override
+			public int read() throws IOException {
+				int read = super.read();
+				if (read < 0) {
+					verify();
+				}
+				return read;
+			}
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, length);
+				if (read < 0) {
+					verify();
+				}
+				return read;
+			}
+			private void verify() throws ZipException {
+				if (!verified) {
+					verified = true;
+					if (getChecksum().getValue() != entry.crc) {
+						throw new ZipException("Invalid crc for: " + entry.name);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Extracts all the entries whose (normalized) path is accepted by the selector, a null selector extracts everything.
+	 * @return the amount of files extracted
+	 */
+	public int extract(ResourceContainer<?> target, Predicate<String> selector) throws IOException {
+		Map<String, ResourceContainer<?>> directories = new HashMap<String, ResourceContainer<?>>();
+		int amount = 0;
+		for (Entry entry : entries) {
+			String path = ResourceExtractor.getSafePath(entry.name);
+			if (entry.isDirectory() || path.isEmpty() || (selector != null && !selector.test(path))) {
+				continue;
+			}
+			int index = path.lastIndexOf('/');
+			ResourceContainer<?> parent = index < 0 ? target : ResourceExtractor.getDirectory(directories, target, path.substring(0, index));
+			Resource create = ((ManageableContainer<?>) parent).create(path.substring(index + 1), ResourceExtractor.getContentType(path));
+			InputStream input = getInputStream(entry);
+			try {
+				WritableContainer<ByteBuffer> writable = ((WritableResource) create).getWritable();
+				try {
+					IOUtils.copyBytes(IOUtils.wrap(input), writable);
+				}
+				finally {
+					writable.close();
+				}
+			}
+			finally {
+				input.close();
+			}
+			amount++;
+		}
+		return amount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		long size = channel.size();
+		// the end record is 22 bytes followed by a comment of at most 65535 bytes
+		int tailSize = (int) Math.min(size, 22 + 0xFFFF);
+		long tailOffset = size - tailSize;
+		java.nio.ByteBuffer tail = read(tailOffset, tailSize);
+		int end = -1;
+		for (int i = tailSize - 22; i >= 0; i--) {
+			if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new ZipException("Could not find the central directory");
+		}
+		long amount = tail.getShort(end + 10) & 0xffff;
+		long directorySize = tail.getInt(end + 12) & MAX_INT;
+		long directoryOffset = tail.getInt(end + 16) & MAX_INT;
+		// the actual values are in the zip64 record
+		if (amount == 0xFFFF || directorySize == MAX_INT || directoryOffset == MAX_INT) {
+			long locator = tailOffset + end - 20;
+			java.nio.ByteBuffer locatorRecord = locator >= 0 ? read(locator, 20) : null;
+			if (locatorRecord != null && locatorRecord.getInt(0) == ZIP64_LOCATOR) {
+				java.nio.ByteBuffer record = read(locatorRecord.getLong(8), 56);
+				if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+					throw new ZipException("Invalid zip64 end of central directory");
+				}
+				amount = record.getLong(32);
+				directorySize = record.getLong(40);
+				directoryOffset = record.getLong(48);
+			}
+		}
+		if (directorySize > Integer.MAX_VALUE) {
+			throw new ZipException("The central directory is too large: " + directorySize);
+		}
+		java.nio.ByteBuffer directory = read(directoryOffset, (int) directorySize);
+		List<Entry> entries = new ArrayList<Entry>();
+		int position = 0;
+		for (long i = 0; i < amount; i++) {
+			if (directory.getInt(position) != CENTRAL_DIRECTORY_HEADER) {
+				throw new ZipException("Invalid central directory header at entry " + i);
+			}
+			Entry entry = new Entry();
+			entry.flags = directory.getShort(position + 8) & 0xffff;
+			entry.method = directory.getShort(position + 10) & 0xffff;
+			entry.crc = directory.getInt(position + 16) & MAX_INT;
+			entry.compressedSize = directory.getInt(position + 20) & MAX_INT;
+			entry.size = directory.getInt(position + 24) & MAX_INT;
+			int nameLength = directory.getShort(position + 28) & 0xffff;
+			int extraLength = directory.getShort(position + 30) & 0xffff;
+			int commentLength = directory.getShort(position + 32) & 0xffff;
+			entry.offset = directory.getInt(position + 42) & MAX_INT;
+			byte [] name = new byte[nameLength];
+			directory.position(position + 46);
+			directory.get(name);
+			entry.name = new String(name, StandardCharsets.UTF_8);
+			readZip64(directory, position + 46 + nameLength, extraLength, entry);
+			entries.add(entry);
+			position += 46 + nameLength + extraLength + commentLength;
+		}
+		return Collections.unmodifiableList(entries);
+	}
+
+	// the zip64 extra field only contains the values that did not fit in the header, in a fixed order
+	private static void readZip64(java.nio.ByteBuffer directory, int offset, int length, Entry entry) {
+		int end = offset + length;
+		while (offset + 4 <= end) {
+			int id = directory.getShort(offset) & 0xffff;
+			int size = directory.getShort(offset + 2) & 0xffff;
+			if (id == 0x0001) {
+				int position = offset + 4;
+				if (entry.size == MAX_INT && position + 8 <= offset + 4 + size) {
+					entry.size = directory.getLong(position);
+					position += 8;
+				}
+				if (entry.compressedSize == MAX_INT && position + 8 <= offset + 4 + size) {
+					entry.compressedSize = directory.getLong(position);
+					position += 8;
+				}
+				if (entry.offset == MAX_INT && position + 8 <= offset + 4 + size) {
+					entry.offset = directory.getLong(position);
+				}
+				return;
+			}
+			offset += 4 + size;
+		}
+	}
+
+	private java.nio.ByteBuffer read(long offset, int length) throws IOException {
+		java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		synchronized(channel) {
+			channel.position(offset);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Unexpected end of zip at " + (offset + buffer.position()));
+				}
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads a region of the channel, each read positions the channel so multiple streams can be open at the same time.
+	 */
+	private class ChannelInputStream extends InputStream {
+		private long position, remaining;
+
+		public ChannelInputStream(long position, long length) {
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte [] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining));
+			int read;
+			synchronized(channel) {
+				channel.position(position);
+				read = channel.read(buffer);
+			}
+			if (read < 0) {
+				throw new EOFException("Unexpected end of zip at " + position);
+			}
+			position += read;
+			remaining -= read;
+			return read;
+		}
+	}
+
+	public static class Entry {
+		private String name;
+		private int flags, method;
+		private long crc, size, compressedSize, offset;
+
+		public String getName() {
+			return name;
+		}
+		public int getMethod() {
+			return method;
+		}
+		public long getCrc() {
+			return crc;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources.api.features;
+
+import java.io.IOException;
+
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.Resource;
+
+/**
+ * A container that stores content by its hash, an existing hash can be linked to a new name without transferring the content again.
+ * The hashes are those returned by ContentTrackingResource.getHash() on the resources in the container.
+ */
+public interface ContentAddressableContainer<T extends Resource> extends ManageableContainer<T> {
+	/**
+	 * Whether content with this hash is already stored (anywhere in the store, not necessarily in this container)
+	 */
+	public boolean hasContent(String hash);
+	/**
+	 * Creates (or replaces) a resource with the given name and content type that has the content with this hash
+	 * @return the linked resource or null if no content with this hash is stored
+	 */
+	public T link(String name, String contentType, String hash) throws IOException;
+}
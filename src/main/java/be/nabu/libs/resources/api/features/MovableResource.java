@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.resources.api.features;
+
+import java.io.IOException;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+
+/**
+ * A resource that can be moved to another container without copying its content, for example within the same file system.
+ */
+public interface MovableResource extends Resource {
+	/**
+	 * Moves the resource to the target container under the given name.
+	 * If the target is not managed by the same backend, no move is performed and null is returned, it is up to the caller to fall back to a copy.
+	 * 
+	 * @return the resource in its new location or null if the target is not supported
+	 */
+	public Resource move(ResourceContainer<?> target, String name) throws IOException;
+}
@@ -0,0 +1,30 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.resources.api.features;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+import be.nabu.libs.resources.api.ReadableResource;
+
+/**
+ * Resources that are backed by something that can expose a channel (e.g. a local file) can implement this to allow for zero-copy transfers.
+ * If the channel is a FileChannel, it is read from its current position up to its size.
+ */
+public interface ReadableChannelResource extends ReadableResource {
+	public ReadableByteChannel getReadableChannel() throws IOException;
+}
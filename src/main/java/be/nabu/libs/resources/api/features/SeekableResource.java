@@ -0,0 +1,30 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.resources.api.features;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+
+import be.nabu.libs.resources.api.ReadableResource;
+
+/**
+ * Resources that support random access (e.g. a local file) can implement this so formats with an index (like the central directory of a zip) can be read without scanning the entire content.
+ * Every call returns a new channel which is closed by the caller.
+ */
+public interface SeekableResource extends ReadableResource {
+	public SeekableByteChannel getSeekableChannel() throws IOException;
+}
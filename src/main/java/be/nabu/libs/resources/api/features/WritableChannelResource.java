@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.libs.resources.api.features;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import be.nabu.libs.resources.api.WritableResource;
+
+/**
+ * The writable counterpart of the ReadableChannelResource. If the channel is a FileChannel, it is written to from its current position.
+ */
+public interface WritableChannelResource extends WritableResource {
+	public WritableByteChannel getWritableChannel() throws IOException;
+}
@@ -0,0 +1,267 @@
+package be.nabu.libs.resources.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable, precompiled version of a list of ignore rules.
+ * Simple patterns (literals, "*.ext", "prefix*") are matched with plain string operations, the others are translated once to a regex.
+ */
+class IgnoreRuleSet {
+
+	private List<String> source;
+	private Rule [] rules;
+
+	IgnoreRuleSet(List<String> source) {
+		this.source = Collections.unmodifiableList(new ArrayList<String>(source));
+		List<Rule> rules = new ArrayList<Rule>();
+		for (String rawRule : source) {
+			String rule = rawRule.trim();
+			// Skip comments and empty lines
+			if (rule.isEmpty() || rule.startsWith("#")) {
+				continue;
+			}
+			rules.add(new Rule(rule));
+		}
+		this.rules = rules.toArray(new Rule[rules.size()]);
+	}
+
+	List<String> getSource() {
+		return source;
+	}
+
+	boolean isEmpty() {
+		return rules.length == 0;
+	}
+
+	/**
+	 * Processes the rules against a path, updating the ignore status.
+	 *
+	 * @param path                The relative path to test (e.g. "src/main/App.java").
+	 * @param currentIgnoreStatus The ignore status from the parent directory.
+	 * @return The new ignore status.
+	 */
+	boolean process(String path, boolean currentIgnoreStatus) {
+		boolean isIgnored = currentIgnoreStatus;
+		String name = null;
+		for (Rule rule : rules) {
+			// only calculate the name if we need it
+			if (name == null && rule.nameMatcher != null) {
+				name = path.substring(path.lastIndexOf('/') + 1);
+			}
+			if (rule.matches(path, name)) {
+				// A matching rule updates the status.
+				// If it's a negation, it's NOT ignored.
+				// If it's an ignore, it IS ignored.
+				isIgnored = !rule.negation;
+			}
+		}
+		return isIgnored;
+	}
+
+	private static class Rule {
+		private boolean negation;
+		// for directory patterns (e.g. "build/"), the path itself or anything below it matches
+		private String directory, directoryPrefix;
+		// patterns without a slash match against the name of the file, the others against the full relative path
+		private Matcher nameMatcher, pathMatcher;
+
+		Rule(String rule) {
+			negation = rule.startsWith("!");
+			if (negation) {
+				rule = rule.substring(1);
+			}
+			String pattern = rule;
+			// Handle anchored paths (e.g., "/src"), these only match from the root of *this* ignore file
+			if (pattern.startsWith("/")) {
+				pattern = pattern.substring(1);
+			}
+			// Handle directory-only patterns (e.g., "build/")
+			if (pattern.endsWith("/")) {
+				pattern = pattern.substring(0, pattern.length() - 1);
+				directory = pattern;
+				directoryPrefix = pattern + "/";
+			}
+			try {
+				// Handle patterns with no slashes (e.g., "*.log"), these match any file in any directory
+				if (!rule.contains("/")) {
+					nameMatcher = Matcher.compile(pattern);
+				}
+				else {
+					pathMatcher = Matcher.compile(pattern);
+				}
+			}
+			catch (IllegalArgumentException e) {
+				// Invalid pattern syntax, only the directory check (if any) can match
+			}
+		}
+
+		boolean matches(String path, String name) {
+			if (directory != null && (path.equals(directory) || path.startsWith(directoryPrefix))) {
+				return true;
+			}
+			if (nameMatcher != null) {
+				return nameMatcher.matches(name);
+			}
+			return pathMatcher != null && pathMatcher.matches(path);
+		}
+	}
+
+	static abstract class Matcher {
+
+		abstract boolean matches(String value);
+
+		static Matcher compile(String glob) {
+			int firstWildcard = indexOfSpecial(glob, 0);
+			// a literal
+			if (firstWildcard < 0) {
+				final String literal = glob;
+				return new Matcher() {
+					@Override
+					boolean matches(String value) {
+						return value.equals(literal);
+					}
+				};
+			}
+			// a suffix like "*.log"
+			else if (firstWildcard == 0 && glob.length() > 1 && glob.charAt(0) == '*' && glob.charAt(1) != '*' && indexOfSpecial(glob, 1) < 0 && glob.indexOf('/') < 0) {
+				final String suffix = glob.substring(1);
+				return new Matcher() {
+					@Override
+					boolean matches(String value) {
+						return value.endsWith(suffix) && value.indexOf('/') < 0;
+					}
+				};
+			}
+			// a prefix like "temp*"
+			else if (firstWildcard == glob.length() - 1 && glob.charAt(firstWildcard) == '*') {
+				final String prefix = glob.substring(0, firstWildcard);
+				return new Matcher() {
+					@Override
+					boolean matches(String value) {
+						return value.startsWith(prefix) && value.indexOf('/', prefix.length()) < 0;
+					}
+				};
+			}
+			final Pattern pattern = Pattern.compile(toRegex(glob));
+			return new Matcher() {
+				@Override
+				boolean matches(String value) {
+					return pattern.matcher(value).matches();
+				}
+			};
+		}
+
+		private static int indexOfSpecial(String glob, int offset) {
+			for (int i = offset; i < glob.length(); i++) {
+				switch (glob.charAt(i)) {
+					case '*':
+					case '?':
+					case '[':
+					case '{':
+					case '\\':
+						return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Translates a glob to a regex, following the same syntax as the glob support in java nio:
+		 * "*" does not cross directories, "**" does, "?" is a single character, [] is a character class and {a,b} are alternatives.
+		 */
+		static String toRegex(String glob) {
+			StringBuilder regex = new StringBuilder();
+			boolean inGroup = false;
+			int i = 0;
+			while (i < glob.length()) {
+				char c = glob.charAt(i++);
+				switch (c) {
+					case '\\':
+						if (i == glob.length()) {
+							throw new IllegalArgumentException("No character to escape: " + glob);
+						}
+						appendLiteral(regex, glob.charAt(i++));
+					break;
+					case '*':
+						if (i < glob.length() && glob.charAt(i) == '*') {
+							regex.append(".*");
+							i++;
+						}
+						else {
+							regex.append("[^/]*");
+						}
+					break;
+					case '?':
+						regex.append("[^/]");
+					break;
+					case '[':
+						regex.append("[[^/]&&[");
+						if (i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^')) {
+							regex.append('^');
+							i++;
+						}
+						boolean closed = false;
+						while (i < glob.length()) {
+							c = glob.charAt(i++);
+							if (c == ']') {
+								closed = true;
+								break;
+							}
+							else if (c == '/') {
+								throw new IllegalArgumentException("Explicit directory separator in class: " + glob);
+							}
+							if (c == '\\' || c == '[' || c == '&') {
+								regex.append('\\');
+							}
+							regex.append(c);
+						}
+						if (!closed) {
+							throw new IllegalArgumentException("Missing ']': " + glob);
+						}
+						regex.append("]]");
+					break;
+					case '{':
+						if (inGroup) {
+							throw new IllegalArgumentException("Nested groups are not supported: " + glob);
+						}
+						regex.append("(?:(?:");
+						inGroup = true;
+					break;
+					case '}':
+						if (inGroup) {
+							regex.append("))");
+							inGroup = false;
+						}
+						else {
+							appendLiteral(regex, c);
+						}
+					break;
+					case ',':
+						if (inGroup) {
+							regex.append(")|(?:");
+						}
+						else {
+							regex.append(',');
+						}
+					break;
+					default:
+						appendLiteral(regex, c);
+				}
+			}
+			if (inGroup) {
+				throw new IllegalArgumentException("Missing '}': " + glob);
+			}
+			return regex.toString();
+		}
+
+		private static void appendLiteral(StringBuilder regex, char c) {
+			if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+				regex.append('\\');
+			}
+			regex.append(c);
+		}
+	}
+}
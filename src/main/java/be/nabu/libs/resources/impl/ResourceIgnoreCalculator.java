@@ -1,18 +1,28 @@
 package be.nabu.libs.resources.impl;
 
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 import be.nabu.libs.resources.api.ResourceContainer;
 
 // based on the rules for .gitignore
 public class ResourceIgnoreCalculator {
+	
+	// compiled rule sets are cached on the content of the rules, if getIgnoreRules() changes, a new rule set is compiled
+	private static final int MAX_CACHED_RULE_SETS = 1024;
+	private static Map<List<String>, IgnoreRuleSet> ruleSets = new ConcurrentHashMap<List<String>, IgnoreRuleSet>();
+	
+	/**
+	 * Compiles a glob with the same syntax as the ignore rules (e.g. "src/*.xml") to match relative paths.
+	 */
+	public static Predicate<String> glob(String glob) {
+		final IgnoreRuleSet.Matcher matcher = IgnoreRuleSet.Matcher.compile(glob);
+		return path -> matcher.matches(path);
+	}
+	
 	/**
 	 * Checks if a file should be accepted (i.e., NOT ignored) based on ignore rules
 	 * from this directory and all parent directories.
@@ -24,129 +34,53 @@ public class ResourceIgnoreCalculator {
 	public static boolean accept(ResourceContainer<?> directory, String file) {
 		// We need to check rules from the root down to the current directory.
 
-		// 1. Build a map of [Directory -> relative/path/to/file]
-		// We use LinkedHashMap to preserve insertion order (child-to-root)
-		Map<ResourceContainer<?>, String> pathsToTest = new LinkedHashMap<>();
+		// 1. Collect the directories and the path of the file relative to each of them, in child-to-root order
+		List<IgnoreRuleSet> rules = new ArrayList<IgnoreRuleSet>();
+		List<String> paths = new ArrayList<String>();
 		ResourceContainer<?> currentDir = directory;
 		String currentPath = file;
 
 		while (currentDir != null) {
-			pathsToTest.put(currentDir, currentPath);
-
+			IgnoreRuleSet ruleSet = getRuleSet(currentDir.getIgnoreRules());
+			// directories without rules don't need to be checked
+			if (ruleSet != null) {
+				rules.add(ruleSet);
+				paths.add(currentPath);
+			}
+			ResourceContainer<?> parent = currentDir.getParent();
 			// For the next loop (parent dir), prepend the current dir's name
 			// Check for parent != null to avoid prepending root's name (if it's "")
-			if (currentDir.getParent() != null) {
+			if (parent != null) {
 				currentPath = currentDir.getName() + "/" + currentPath;
 			}
-			currentDir = currentDir.getParent();
+			currentDir = parent;
 		}
 
-		// 2. Get the directories in ROOT-TO-CHILD order (lowest to highest precedence)
-		List<ResourceContainer<?>> orderedDirs = new ArrayList<>(pathsToTest.keySet());
-		Collections.reverse(orderedDirs); // Now in [root, ..., src, main] order
-
 		boolean isIgnored = false; // Default: not ignored
 
-		// 3. Process rules from root-down
-		for (ResourceContainer<?> dir : orderedDirs) {
-			String path = pathsToTest.get(dir); // Get the path relative to this dir
-			isIgnored = processRules(dir.getIgnoreRules(), path, isIgnored);
+		// 2. Process rules from root-down (lowest to highest precedence)
+		for (int i = rules.size() - 1; i >= 0; i--) {
+			isIgnored = rules.get(i).process(paths.get(i), isIgnored);
 		}
 
 		// 'accept' means 'NOT ignored'
 		return !isIgnored;
 	}
 
-	/**
-	 * Processes a list of rules against a path, updating the ignore status.
-	 *
-	 * @param rules               List of raw rule strings.
-	 * @param path                The relative path to test (e.g.,
-	 *                            "src/main/App.java").
-	 * @param currentIgnoreStatus The ignore status from the parent directory.
-	 * @return The new ignore status.
-	 */
-	private static boolean processRules(List<String> rules, String path, boolean currentIgnoreStatus) {
-		boolean isIgnored = currentIgnoreStatus;
-		for (String rawRule : rules) {
-			String rule = rawRule.trim();
-
-			// Skip comments and empty lines
-			if (rule.isEmpty() || rule.startsWith("#")) {
-				continue;
-			}
-
-			boolean isNegation = rule.startsWith("!");
-			if (isNegation) {
-				rule = rule.substring(1); // Remove "!"
-			}
-
-			if (matches(rule, path)) {
-				// A matching rule updates the status.
-				// If it's a negation, it's NOT ignored.
-				// If it's an ignore, it IS ignored.
-				isIgnored = !isNegation;
-			}
+	private static IgnoreRuleSet getRuleSet(List<String> rules) {
+		if (rules == null || rules.isEmpty()) {
+			return null;
 		}
-		return isIgnored;
-	}
-
-	/**
-	 * Checks if a .gitignore pattern matches a given path.
-	 *
-	 * NOTE: This is a SIMPLIFIED matcher. A full .gitignore implementation is very
-	 * complex. This handles basic wildcards and directory matching. It uses the
-	 * Java NIO PathMatcher.
-	 *
-	 * @param pattern e.g., "*.log", "build/", "src/**.java"
-	 * @param path    e.g., "Main.java", "build/output.txt"
-	 */
-	private static boolean matches(String pattern, String path) {
-		String originalPattern = pattern;
-		// Handle directory-only patterns (e.g., "build/")
-		if (pattern.endsWith("/")) {
-			pattern = pattern.substring(0, pattern.length() - 1); // Remove /
-			// Matches "build" exactly or "build/..."
-			if (path.equals(pattern) || path.startsWith(pattern + "/")) {
-				return true;
-			}
-		}
-
-		// Handle patterns with no slashes (e.g., "*.log")
-		// These match any file in any directory.
-		if (!originalPattern.contains("/")) {
-			if (!originalPattern.contains("*") && !originalPattern.contains("?") && !originalPattern.contains("{")) {
-				return Paths.get(path).getFileName().toString().equals(originalPattern);
+		IgnoreRuleSet ruleSet = ruleSets.get(rules);
+		if (ruleSet == null) {
+			ruleSet = new IgnoreRuleSet(rules);
+			// rules are usually stable, this only kicks in if they are generated dynamically
+			if (ruleSets.size() >= MAX_CACHED_RULE_SETS) {
+				ruleSets.clear();
 			}
-			// We check against the file's name OR the full path
-			// 'glob:**/' matches 0 or more directories
-			pattern = "**/" + pattern;
-		}
-		// Handle anchored paths (e.g., "/src")
-		// These only match from the root of *this* .gitignore file
-		else if (pattern.startsWith("/")) {
-			pattern = pattern.substring(1);
-		}
-
-		// Use Java's built-in glob matcher
-		try {
-			// We must use "/" as the separator, even on Windows
-			String pathForMatcher = path.replace("\\", "/");
-			String patternForMatcher = pattern.replace("\\", "/");
-
-			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + patternForMatcher);
-			if (matcher.matches(Paths.get(pathForMatcher))) {
-				return true;
-			}
-			if (!originalPattern.contains("/") && originalPattern.contains("*")) {
-				PathMatcher nameMatcher = FileSystems.getDefault().getPathMatcher("glob:" + originalPattern);
-				return nameMatcher.matches(Paths.get(pathForMatcher).getFileName());
-			}
-			return false;
-		}
-		catch (Exception e) {
-			// Invalid pattern syntax
-			return false;
+			// the rule set has its own immutable copy of the rules which we use as key
+			ruleSets.put(ruleSet.getSource(), ruleSet);
 		}
+		return ruleSet.isEmpty() ? null : ruleSet;
 	}
 }
@@ -0,0 +1,227 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.ResourceFilter;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.libs.resources.api.features.ReadableChannelResource;
+import be.nabu.libs.resources.api.features.SeekableResource;
+import be.nabu.libs.resources.api.features.WritableChannelResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+import junit.framework.TestCase;
+
+/**
+ * The fixtures shared by the resource tests: in-memory trees and files and file channel based resources.
+ */
+public abstract class ResourceTestCase extends TestCase {
+
+	static VirtualContainer<Resource> tree(int width, int depth) {
+		VirtualContainer<Resource> root = new VirtualContainer<Resource>(URI.create("virtual:/"));
+		fill(root, width, depth);
+		return root;
+	}
+
+	static void fill(VirtualContainer<Resource> parent, int width, int depth) {
+		for (int i = 0; i < width; i++) {
+			VirtualContainer<Resource> child = new VirtualContainer<Resource>(parent, "child" + i);
+			parent.addChild(child.getName(), child);
+			if (depth > 1) {
+				fill(child, width, depth - 1);
+			}
+		}
+	}
+
+	static void write(Resource resource, String content) throws IOException {
+		WritableContainer<ByteBuffer> writable = ((WritableResource) resource).getWritable();
+		try {
+			IOUtils.copyBytes(IOUtils.wrap(content.getBytes("UTF-8"), true), writable);
+		}
+		finally {
+			writable.close();
+		}
+	}
+
+	static String read(Resource resource) throws IOException {
+		ReadableContainer<ByteBuffer> readable = ((ReadableResource) resource).getReadable();
+		try {
+			return new String(IOUtils.toBytes(readable), "UTF-8");
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	static List<String> paths(ResourceContainer<?> container) {
+		return ResourceUtils.stream(container, new ResourceFilter() {
+			@Override
+			public boolean accept(Resource resource) {
+				return !(resource instanceof ResourceContainer);
+			}
+		}, true).map(ResourceUtils::getPath).sorted().collect(Collectors.toList());
+	}
+
+	static class ChannelFile implements ReadableChannelResource, WritableChannelResource, SeekableResource {
+		private File file;
+
+		public ChannelFile(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/octet-stream";
+		}
+
+		@Override
+		public String getName() {
+			return file.getName();
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			throw new IllegalStateException("The channel should be used");
+		}
+
+		@Override
+		public WritableContainer<ByteBuffer> getWritable() throws IOException {
+			throw new IllegalStateException("The channel should be used");
+		}
+
+		@Override
+		public ReadableByteChannel getReadableChannel() throws IOException {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+
+		@Override
+		public WritableByteChannel getWritableChannel() throws IOException {
+			return FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		@Override
+		public SeekableByteChannel getSeekableChannel() throws IOException {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+	}
+
+	static class MemoryDirectory extends VirtualContainer<Resource> implements ManageableContainer<Resource> {
+		public MemoryDirectory(ResourceContainer<?> parent, String name) {
+			super(parent, name);
+		}
+
+		public MemoryDirectory(URI uri) {
+			super(uri);
+		}
+
+		@Override
+		public synchronized Resource create(String name, String contentType) throws IOException {
+			Resource resource = Resource.CONTENT_TYPE_DIRECTORY.equals(contentType) ? new MemoryDirectory(this, name) : new MemoryFile(this, name);
+			addChild(name, resource);
+			return resource;
+		}
+
+		@Override
+		public synchronized Resource getChild(String name) {
+			return super.getChild(name);
+		}
+
+		@Override
+		public synchronized void delete(String name) throws IOException {
+			removeChild(name);
+		}
+	}
+
+	static class MemoryFile implements ReadableResource, WritableResource, FiniteResource, TimestampedResource {
+		private ResourceContainer<?> parent;
+		private String name;
+		private ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private Date lastModified = new Date();
+
+		public MemoryFile(ResourceContainer<?> parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/octet-stream";
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return parent;
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			return IOUtils.wrap(content.toByteArray(), true);
+		}
+
+		@Override
+		public WritableContainer<ByteBuffer> getWritable() throws IOException {
+			content.reset();
+			lastModified = new Date();
+			return IOUtils.wrap(content);
+		}
+
+		@Override
+		public long getSize() {
+			return content.size();
+		}
+
+		@Override
+		public Date getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(Date lastModified) {
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.net.URI;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import be.nabu.libs.resources.api.Archive;
+import be.nabu.libs.resources.api.ArchiveResolver;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import junit.framework.TestCase;
+
+public class TestArchiveCache extends TestCase {
+
+	private static class MockSource implements TimestampedResource, FiniteResource {
+		private Date lastModified = new Date(1000);
+		private long size = 1;
+
+		@Override
+		public String getContentType() {
+			return "application/zip";
+		}
+
+		@Override
+		public String getName() {
+			return "archive.zip";
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+
+		@Override
+		public Date getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+	}
+
+	private static class MockArchive implements Archive<Resource> {
+		private Resource source;
+		private boolean closed;
+
+		@Override
+		public Resource getSource() {
+			return source;
+		}
+
+		@Override
+		public void setSource(Resource resource) {
+			this.source = resource;
+		}
+
+		@Override
+		public String getName() {
+			return source.getName();
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+
+		@Override
+		public Resource getChild(String name) {
+			return null;
+		}
+
+		@Override
+		public Iterator<Resource> iterator() {
+			return Collections.<Resource>emptyList().iterator();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static class MockArchiveResolver implements ArchiveResolver {
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T extends Resource> Archive<T> newInstance() {
+			return (Archive<T>) new MockArchive();
+		}
+
+		@Override
+		public List<String> getSupportedContentTypes() {
+			return Arrays.asList("application/zip");
+		}
+	}
+
+	private ArchiveResolver resolver = new MockArchiveResolver();
+
+	public void testCounters() {
+		ArchiveCache cache = new ArchiveCache(4);
+		MockSource source = new MockSource();
+		Archive<Resource> archive = cache.getArchive(URI.create("mock:/archive.zip"), null, source, resolver);
+		assertSame(archive, cache.getArchive(URI.create("mock:/archive.zip"), null, source, resolver));
+		// the uri is normalized
+		assertSame(archive, cache.getArchive(URI.create("mock:/other/../archive.zip"), null, source, resolver));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		// a different principal gets its own archive
+		assertNotSame(archive, cache.getArchive(URI.create("mock:/archive.zip"), new MockPrincipal("user"), source, resolver));
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+	}
+
+	public void testInvalidation() {
+		ArchiveCache cache = new ArchiveCache(4);
+		MockSource source = new MockSource();
+		URI uri = URI.create("mock:/archive.zip");
+		MockArchive archive = (MockArchive) cache.getArchive(uri, null, source, resolver);
+		source.lastModified = new Date(2000);
+		MockArchive modified = (MockArchive) cache.getArchive(uri, null, source, resolver);
+		assertNotSame(archive, modified);
+		source.size = 2;
+		MockArchive resized = (MockArchive) cache.getArchive(uri, null, source, resolver);
+		assertNotSame(modified, resized);
+		assertSame(resized, cache.getArchive(uri, null, source, resolver));
+		assertEquals(3, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+		// replaced archives are closed
+		assertTrue(archive.closed);
+		assertTrue(modified.closed);
+		assertFalse(resized.closed);
+	}
+
+	public void testNestedInvalidation() {
+		ArchiveCache cache = new ArchiveCache(4);
+		MockSource outer = new MockSource(), inner = new MockSource(), sibling = new MockSource();
+		cache.getArchive(URI.create("mock:/archive.zip"), null, outer, resolver);
+		Archive<Resource> nested = cache.getArchive(URI.create("mock:/archive.zip/lib/library.jar"), null, inner, resolver);
+		Archive<Resource> other = cache.getArchive(URI.create("mock:/archive.zipped/library.jar"), null, sibling, resolver);
+		outer.lastModified = new Date(2000);
+		cache.getArchive(URI.create("mock:/archive.zip"), null, outer, resolver);
+		// the nested archive was opened from the old content
+		assertEquals(2, cache.size());
+		assertNotSame(nested, cache.getArchive(URI.create("mock:/archive.zip/lib/library.jar"), null, inner, resolver));
+		assertSame(other, cache.getArchive(URI.create("mock:/archive.zipped/library.jar"), null, sibling, resolver));
+	}
+
+	public void testEviction() {
+		ArchiveCache cache = new ArchiveCache(2);
+		MockSource source = new MockSource();
+		MockArchive first = (MockArchive) cache.getArchive(URI.create("mock:/first.zip"), null, source, resolver);
+		MockArchive second = (MockArchive) cache.getArchive(URI.create("mock:/second.zip"), null, source, resolver);
+		// make the second one the least recently used
+		assertSame(first, cache.getArchive(URI.create("mock:/first.zip"), null, source, resolver));
+		cache.getArchive(URI.create("mock:/third.zip"), null, source, resolver);
+		assertEquals(2, cache.size());
+		assertSame(first, cache.getArchive(URI.create("mock:/first.zip"), null, source, resolver));
+		assertNotSame(second, cache.getArchive(URI.create("mock:/second.zip"), null, source, resolver));
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertTrue(second.closed);
+		assertFalse(first.closed);
+	}
+
+	public void testNestedEviction() {
+		ArchiveCache cache = new ArchiveCache(3);
+		MockSource source = new MockSource();
+		cache.getArchive(URI.create("mock:/outer.zip"), null, source, resolver);
+		MockArchive nested = (MockArchive) cache.getArchive(URI.create("mock:/outer.zip/nested.jar"), null, source, resolver);
+		Archive<Resource> other = cache.getArchive(URI.create("mock:/other.zip"), null, source, resolver);
+		assertSame(nested, cache.getArchive(URI.create("mock:/outer.zip/nested.jar"), null, source, resolver));
+		// the outer archive is the least recently used, its nested archive goes with it
+		cache.getArchive(URI.create("mock:/new.zip"), null, source, resolver);
+		assertEquals(2, cache.size());
+		assertSame(other, cache.getArchive(URI.create("mock:/other.zip"), null, source, resolver));
+		assertEquals(2, cache.getHits());
+		assertTrue(nested.closed);
+	}
+
+	public void testClear() {
+		ArchiveCache cache = new ArchiveCache(4);
+		MockSource source = new MockSource();
+		MockArchive archive = (MockArchive) cache.getArchive(URI.create("mock:/archive.zip"), null, source, resolver);
+		cache.getArchive(URI.create("mock:/other.zip"), null, source, resolver);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertTrue(archive.closed);
+		assertNotSame(archive, cache.getArchive(URI.create("mock:/archive.zip"), null, source, resolver));
+		assertEquals(3, cache.getMisses());
+	}
+
+	public void testUntrackableSource() {
+		ArchiveCache cache = new ArchiveCache(4);
+		Resource source = new ReadableByteResource(new byte[0]).setName("archive.zip");
+		assertNotSame(cache.getArchive(URI.create("mock:/archive.zip"), null, source, resolver), cache.getArchive(URI.create("mock:/archive.zip"), null, source, resolver));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMisses());
+	}
+
+	private static class MockPrincipal implements Principal {
+		private String name;
+
+		public MockPrincipal(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+}
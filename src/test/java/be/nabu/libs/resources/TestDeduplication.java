@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.resources.api.ContentTrackingResource;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+public class TestDeduplication extends ResourceTestCase {
+
+	public void testDeduplication() throws IOException {
+		MemoryDirectory blobs = new MemoryDirectory(URI.create("memory:/"));
+		DeduplicatingContainer store = new DeduplicatingContainer(blobs, "SHA-256", 16);
+		write(store.create("a.txt", "text/plain"), "hello");
+		write(ResourceUtils.touch(store, "dir/b.txt"), "hello");
+		assertEquals(1, store.getBlobs());
+		assertEquals(1, paths(blobs).size());
+
+		// larger content is spilled to a temporary blob which is renamed or discarded
+		String large = "this content is larger than the spill threshold";
+		write(store.create("c.txt", "text/plain"), large);
+		write(store.create("d.txt", "text/plain"), large);
+		assertEquals(2, store.getBlobs());
+		assertEquals(2, paths(blobs).size());
+		assertEquals(large, read(store.getChild("d.txt")));
+		assertEquals(large.length(), ((FiniteResource) store.getChild("d.txt")).getSize());
+
+		Map<String, String> manifest = store.getManifest();
+		assertEquals(Arrays.asList("a.txt", "c.txt", "d.txt", "dir/b.txt"), new ArrayList<String>(manifest.keySet()));
+		assertEquals(manifest.get("a.txt"), manifest.get("dir/b.txt"));
+
+		// the blob is only removed when the last reference is gone
+		store.delete("a.txt");
+		assertEquals(2, store.getBlobs());
+		store.delete("dir");
+		assertEquals(1, store.getBlobs());
+		write(store.getChild("c.txt"), "overwritten");
+		assertEquals(2, store.getBlobs());
+		assertEquals(large, read(store.getChild("d.txt")));
+
+		// the tree can be rebuilt on the same blobs
+		DeduplicatingContainer restored = new DeduplicatingContainer(blobs);
+		restored.restore(store.getManifest());
+		assertEquals("overwritten", read(restored.getChild("c.txt")));
+		assertEquals("text/plain", restored.getChild("c.txt").getContentType());
+		assertEquals(large, read(restored.getChild("d.txt")));
+
+		// content that is not stored can not be linked
+		assertNull(restored.link("missing.txt", "text/plain", "unknown"));
+		try {
+			restored.link("missing.txt", "unknown");
+			fail("The content does not exist");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testDeduplicationConcurrentWrites() throws IOException, InterruptedException {
+		MemoryDirectory blobs = new MemoryDirectory(URI.create("memory:/"));
+		final DeduplicatingContainer store = new DeduplicatingContainer(blobs, "SHA-256", 16);
+		final String large = "this content is larger than the spill threshold";
+		final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final String name = "file" + i + ".txt";
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							write(store.create(name, "text/plain"), large);
+						}
+					}
+					catch (Exception e) {
+						exceptions.add(e);
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(exceptions.isEmpty());
+		// a single blob and no leftover temporary blobs
+		assertEquals(1, store.getBlobs());
+		assertEquals(1, paths(blobs).size());
+		assertEquals(large, read(store.getChild("file7.txt")));
+	}
+
+	private static class TrackedFile extends MemoryFile implements ContentTrackingResource {
+		private String hash;
+
+		public TrackedFile(ResourceContainer<?> parent, String name, String hash) {
+			super(parent, name);
+			this.hash = hash;
+		}
+
+		@Override
+		public String getHash() {
+			return hash;
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			throw new IOException("The content should not be read");
+		}
+	}
+
+	public void testCopyByHash() throws IOException {
+		DeduplicatingContainer target = new DeduplicatingContainer(new MemoryDirectory(URI.create("memory:/")));
+		write(target.create("existing.txt", "text/plain"), "content");
+		String hash = ((ContentTrackingResource) target.getChild("existing.txt")).getHash();
+		assertEquals(ContentIndex.hash((ReadableResource) target.getChild("existing.txt"), "SHA-256"), hash);
+
+		VirtualContainer<Resource> source = new VirtualContainer<Resource>(URI.create("source:/"));
+		for (int i = 0; i < 10; i++) {
+			source.addChild("file" + i, new TrackedFile(source, "file" + i, hash));
+		}
+		Resource copied = ResourceUtils.copy(source.getChild("file0"), target, "copied.txt");
+		assertEquals("content", read(copied));
+		// the content type is kept even though the content is linked
+		assertEquals("application/octet-stream", copied.getContentType());
+
+		ResourceCopier copier = new ResourceCopier();
+		copier.setConcurrency(2);
+		ResourceCopier.CopyReport report = copier.copy(source, target, "tree");
+		assertTrue(report.isSuccessful());
+		assertEquals(10, report.getDeduplicated());
+		assertEquals(0, report.getBytes());
+		assertEquals("content", read(ResourceUtils.resolve(target, "tree/file9")));
+		assertEquals("application/octet-stream", ResourceUtils.resolve(target, "tree/file9").getContentType());
+		assertEquals(1, target.getBlobs());
+	}
+
+	public void testContentIndex() throws IOException {
+		MemoryDirectory root = new MemoryDirectory(URI.create("memory:/"));
+		write(root.create("a.txt", "text/plain"), "same");
+		write(ResourceUtils.touch(root, "dir/b.txt"), "same");
+		write(root.create("c.txt", "text/plain"), "different");
+		ContentIndex index = new ContentIndex();
+		index.index(root);
+		assertEquals(3, index.size());
+		Map<String, List<String>> duplicates = index.getDuplicates();
+		assertEquals(1, duplicates.size());
+		assertEquals(Arrays.asList("a.txt", "dir/b.txt"), duplicates.values().iterator().next());
+		assertTrue(index.contains(index.getHash("c.txt")));
+		index.remove("c.txt");
+		assertEquals(2, index.size());
+
+		// a container that stops returning data without signalling the end
+		final byte [] content = "same".getBytes("UTF-8");
+		ReadableResource stalling = new ReadableByteResource(content) {
+			@Override
+			public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+				return new ReadableContainer<ByteBuffer>() {
+					private boolean done;
+					@Override
+					public long read(ByteBuffer buffer) throws IOException {
+						if (done) {
+							return 0;
+						}
+						done = true;
+						return buffer.write(content);
+					}
+					@Override
+					public void close() {
+						// do nothing
+					}
+				};
+			}
+		};
+		assertEquals(index.getHash("a.txt"), ContentIndex.hash(stalling, ContentIndex.DEFAULT_ALGORITHM));
+	}
+}
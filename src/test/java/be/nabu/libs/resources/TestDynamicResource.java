@@ -0,0 +1,389 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.buffers.bytes.DynamicByteBuffer;
+import junit.framework.TestCase;
+
+public class TestDynamicResource extends TestCase {
+
+	private static byte [] random(int size) {
+		byte [] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte [] read(ReadableContainer<ByteBuffer> readable) throws IOException {
+		try {
+			return IOUtils.toBytes(readable);
+		}
+		finally {
+			readable.close();
+		}
+	}
+
+	public void testOffHeap() throws IOException {
+		byte [] content = random(300000);
+		OffHeapContainer backend = new OffHeapContainer(100000, 16 * 1024, null);
+		DynamicResource resource = new DynamicResource(IOUtils.wrap(content, true), backend, "test.bin", "application/octet-stream", true);
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+		assertEquals(content.length, backend.getSize());
+		assertTrue(backend.isSpilled());
+		File file = backend.getFile();
+		assertTrue(file.exists());
+
+		// the duplicate is replayed
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+
+		// closing the resource releases everything
+		ReadableContainer<ByteBuffer> readable = resource.getReadable();
+		resource.close();
+		assertFalse(file.exists());
+		try {
+			readable.read(IOUtils.newByteBuffer(10, true));
+			fail("Reading a released container should fail");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testOffHeapMappedRegions() throws IOException {
+		byte [] content = random(1000000);
+		// the file is mapped in several regions that do not line up with the segments or the writes
+		OffHeapContainer container = new OffHeapContainer(40000, 16 * 1024, 100000, null);
+		for (int offset = 0; offset < content.length; offset += 7777) {
+			container.write(IOUtils.wrap(content, offset, Math.min(7777, content.length - offset), true));
+		}
+		assertTrue(container.isSpilled());
+		assertEquals(content.length, container.getSize());
+		assertTrue(Arrays.equals(content, IOUtils.toBytes(container.duplicate(false))));
+		File file = container.getFile();
+		container.close();
+		assertFalse(file.exists());
+	}
+
+	public void testOffHeapWithoutSpill() throws IOException {
+		OffHeapContainer container = new OffHeapContainer(1024 * 1024);
+		byte [] content = random(100000);
+		container.write(IOUtils.wrap(content, true));
+		assertFalse(container.isSpilled());
+		OffHeapContainer duplicate = container.duplicate(true);
+		// an independent read position
+		assertEquals(50000, container.read(IOUtils.newByteBuffer(50000, true)));
+		assertTrue(Arrays.equals(content, IOUtils.toBytes(duplicate)));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 50000, content.length), IOUtils.toBytes(container.duplicate(true))));
+		duplicate.close();
+		// closing a duplicate does not release the data
+		assertEquals(50000, container.read(IOUtils.newByteBuffer(50000, true)));
+		container.close();
+	}
+
+	private static class SlowInputStream extends ByteArrayInputStream {
+		private boolean closed;
+
+		public SlowInputStream(byte [] bytes) {
+			super(bytes);
+		}
+
+		@Override
+		public synchronized int read(byte[] bytes, int offset, int length) {
+			if (closed) {
+				throw new IllegalStateException("The stream is closed");
+			}
+			Thread.yield();
+			return super.read(bytes, offset, Math.min(length, 1000));
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static void concurrentReplay(final DynamicResource resource, SlowInputStream original, byte [] content) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 16; i++) {
+				futures.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return read(resource.getReadable());
+					}
+				}));
+			}
+			for (Future<byte[]> future : futures) {
+				assertTrue(Arrays.equals(content, future.get()));
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		// the original is closed once it is fully read
+		assertTrue(original.closed);
+		// and can still be replayed
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+		resource.close();
+	}
+
+	public void testConcurrentReplay() throws Exception {
+		byte [] content = random(500000);
+		SlowInputStream original = new SlowInputStream(content);
+		concurrentReplay(new DynamicResource(IOUtils.wrap(original), "test.bin", "application/octet-stream", true), original, content);
+	}
+
+	public void testConcurrentOffHeapReplay() throws Exception {
+		byte [] content = random(500000);
+		SlowInputStream original = new SlowInputStream(content);
+		concurrentReplay(new DynamicResource(IOUtils.wrap(original), new OffHeapContainer(100000, 16 * 1024, null), "test.bin", "application/octet-stream", true), original, content);
+	}
+
+	public void testReaderStartsLate() throws IOException {
+		byte [] content = random(50000);
+		DynamicResource resource = new DynamicResource(IOUtils.wrap(new ByteArrayInputStream(content)), "test.bin", "application/octet-stream", false);
+		ReadableContainer<ByteBuffer> first = resource.getReadable();
+		ByteBuffer buffer = IOUtils.newByteBuffer(20000, true);
+		while (buffer.remainingSpace() > 0) {
+			first.read(buffer);
+		}
+		// the second reader replays the prefix and continues with the original
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+		byte [] rest = read(first);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 20000, content.length), rest));
+		resource.close();
+	}
+
+	public void testPoolSpill() throws IOException {
+		BufferPool pool = new BufferPool(32 * 1024, 16 * 1024, 0);
+		PooledDynamicResourceProvider provider = new PooledDynamicResourceProvider(pool);
+		byte [] content = random(100000);
+		DynamicResource resource = (DynamicResource) provider.createDynamicResource(IOUtils.wrap(content, true), "test.bin", "application/octet-stream", true);
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+		assertTrue(Arrays.equals(content, read(resource.getReadable())));
+		assertEquals(32 * 1024, pool.getBuffered());
+		assertEquals(1, pool.getSpills());
+		resource.close();
+		assertEquals(0, pool.getBuffered());
+		assertEquals(32 * 1024, pool.getPooled());
+
+		// the buffers are reused
+		resource = (DynamicResource) provider.createDynamicResource(IOUtils.wrap(content, 0, 20000, true), "test.bin", "application/octet-stream", true);
+		assertTrue(Arrays.equals(Arrays.copyOf(content, 20000), read(resource.getReadable())));
+		assertEquals(0, pool.getPooled());
+		resource.close();
+		assertEquals(32 * 1024, pool.getPeak());
+		pool.close();
+		assertEquals(0, pool.getPooled());
+	}
+
+	public void testPoolBackpressure() throws Exception {
+		BufferPool pool = new BufferPool(32 * 1024, 16 * 1024, 10000);
+		PooledDynamicResourceProvider provider = new PooledDynamicResourceProvider(pool);
+		byte [] content = random(32 * 1024);
+		DynamicResource first = (DynamicResource) provider.createDynamicResource(IOUtils.wrap(content, true), "first.bin", "application/octet-stream", true);
+		assertTrue(Arrays.equals(content, read(first.getReadable())));
+		assertEquals(pool.getBudget(), pool.getBuffered());
+
+		final DynamicResource second = (DynamicResource) provider.createDynamicResource(IOUtils.wrap(content, 0, 1000, true), "second.bin", "application/octet-stream", true);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<byte[]> future = executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return read(second.getReadable());
+				}
+			});
+			// the second resource waits until the first returns its buffers
+			while (pool.getWaits() == 0) {
+				Thread.sleep(10);
+			}
+			assertFalse(future.isDone());
+			first.close();
+			assertTrue(Arrays.equals(Arrays.copyOf(content, 1000), future.get()));
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertEquals(1, pool.getWaits());
+		assertEquals(0, pool.getSpills());
+		assertEquals(16 * 1024, pool.getBuffered());
+		second.close();
+		pool.close();
+	}
+
+	public void testPoolWaitDoesNotBlockReplay() throws Exception {
+		BufferPool pool = new BufferPool(32 * 1024, 16 * 1024, 2000);
+		byte [] content = random(40000);
+		final DynamicResource resource = (DynamicResource) new PooledDynamicResourceProvider(pool).createDynamicResource(IOUtils.wrap(new SlowInputStream(content)), "test.bin", "application/octet-stream", true);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// this reader fills the budget and then waits for more memory
+			Future<byte[]> filling = executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return read(resource.getReadable());
+				}
+			});
+			while (pool.getWaits() == 0) {
+				Thread.sleep(10);
+			}
+			// while another reader can still replay what is buffered
+			Future<Long> replaying = executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					ReadableContainer<ByteBuffer> readable = resource.getReadable();
+					// the original is read per 1000 bytes, the chunk that crosses the budget is not yet available
+					ByteBuffer buffer = IOUtils.newByteBuffer(32000, true);
+					while (buffer.remainingSpace() > 0) {
+						readable.read(buffer);
+					}
+					return buffer.remainingData();
+				}
+			});
+			assertEquals(Long.valueOf(32000), replaying.get(1, TimeUnit.SECONDS));
+			assertFalse(filling.isDone());
+			// after the wait the rest is spilled
+			assertTrue(Arrays.equals(content, filling.get()));
+			assertEquals(1, pool.getSpills());
+		}
+		finally {
+			executor.shutdown();
+		}
+		resource.close();
+		assertEquals(0, pool.getBuffered());
+		pool.close();
+	}
+
+	public void testPoolReclaimsUnclosed() throws Exception {
+		final BufferPool pool = new BufferPool(16 * 1024, 16 * 1024, 0);
+		final java.nio.ByteBuffer buffer = pool.acquire();
+		final boolean [] completed = new boolean[1];
+		Object tracker = pool.track(new Object(), new Closeable() {
+			@Override
+			public void close() throws IOException {
+				// like a container that is appending while it is reclaimed, someone holding its lock needs the pool
+				Thread appender = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							pool.tryAcquire();
+						}
+						catch (IOException e) {
+							// ignore
+						}
+					}
+				});
+				appender.start();
+				try {
+					appender.join(5000);
+				}
+				catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				completed[0] = !appender.isAlive();
+				pool.release(buffer);
+			}
+		});
+		// the garbage collector is not predictable, we enqueue the reference ourselves
+		((Reference<?>) tracker).enqueue();
+		// the budget is exhausted, the request reclaims the buffer of the unclosed owner
+		java.nio.ByteBuffer reclaimed = pool.tryAcquire();
+		assertNotNull(reclaimed);
+		assertTrue(completed[0]);
+		assertEquals(1, pool.getReclaimed());
+		pool.release(reclaimed);
+		assertEquals(0, pool.getBuffered());
+
+		// owners that are closed properly are no longer tracked
+		Object closed = pool.track(new Object(), new Closeable() {
+			@Override
+			public void close() throws IOException {
+				fail("The owner was closed properly");
+			}
+		});
+		pool.untrack(closed);
+		((Reference<?>) closed).enqueue();
+		assertEquals(0, pool.reclaim());
+		pool.close();
+	}
+
+	private static class FailingBuffer extends DynamicByteBuffer {
+		private long remaining;
+
+		public FailingBuffer(long remaining) {
+			this.remaining = remaining;
+		}
+
+		@Override
+		public long write(ByteBuffer buffer) throws IOException {
+			if (remaining <= 0) {
+				throw new IOException("The backend is full");
+			}
+			byte [] bytes = new byte[(int) Math.min(buffer.remainingData(), remaining)];
+			int read = buffer.read(bytes);
+			remaining -= read;
+			return write(bytes, 0, read);
+		}
+	}
+
+	public void testBackendFailure() throws IOException {
+		byte [] content = random(10000);
+		// the backend fails halfway through a chunk
+		DynamicResource resource = new DynamicResource(IOUtils.wrap(new SlowInputStream(content)), new FailingBuffer(2500), "test.bin", "application/octet-stream", true);
+		ReadableContainer<ByteBuffer> waiting = resource.getReadable();
+		try {
+			read(resource.getReadable());
+			fail("The backend failure should be thrown");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		// no reader can continue with the partially written data
+		for (ReadableContainer<ByteBuffer> readable : Arrays.asList(waiting, resource.getReadable())) {
+			try {
+				readable.read(IOUtils.newByteBuffer(100, true));
+				fail("The resource should be failed");
+			}
+			catch (IOException e) {
+				assertEquals("The backend is full", e.getCause().getMessage());
+			}
+		}
+		resource.close();
+	}
+}
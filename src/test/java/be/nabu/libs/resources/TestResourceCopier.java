@@ -0,0 +1,152 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+public class TestResourceCopier extends ResourceTestCase {
+
+	private static VirtualContainer<Resource> copySource() {
+		VirtualContainer<Resource> source = new VirtualContainer<Resource>(URI.create("source:/"));
+		source.addChild("a.txt", new ReadableByteResource("new a".getBytes()).setName("a.txt"));
+		source.addChild("b.txt", new ReadableByteResource("new b".getBytes()).setName("b.txt"));
+		VirtualContainer<Resource> directory = new VirtualContainer<Resource>(source, "dir");
+		source.addChild("dir", directory);
+		directory.addChild("c.txt", new ReadableByteResource("new c".getBytes()).setName("c.txt"));
+		return source;
+	}
+
+	public void testCopierOverwritePolicy() throws IOException {
+		for (ResourceCopier.OverwritePolicy policy : ResourceCopier.OverwritePolicy.values()) {
+			MemoryDirectory target = new MemoryDirectory(URI.create("memory:/"));
+			write(ResourceUtils.touch(target, "tree/a.txt"), "old a");
+			ResourceCopier copier = new ResourceCopier();
+			copier.setConcurrency(2);
+			copier.setOverwritePolicy(policy);
+			ResourceCopier.CopyReport report = copier.copy(copySource(), target, "tree");
+			assertEquals("new b", read(ResourceUtils.resolve(target, "tree/b.txt")));
+			assertEquals("new c", read(ResourceUtils.resolve(target, "tree/dir/c.txt")));
+			switch (policy) {
+				case FAIL:
+					assertFalse(report.isSuccessful());
+					assertEquals(Arrays.asList("tree/a.txt"), new ArrayList<String>(report.getFailures().keySet()));
+					assertEquals(2, report.getFiles());
+					assertEquals(10, report.getBytes());
+					assertEquals(0, report.getSkipped());
+					assertEquals("old a", read(ResourceUtils.resolve(target, "tree/a.txt")));
+				break;
+				case SKIP:
+					assertTrue(report.isSuccessful());
+					assertEquals(2, report.getFiles());
+					assertEquals(1, report.getSkipped());
+					assertEquals("old a", read(ResourceUtils.resolve(target, "tree/a.txt")));
+				break;
+				case OVERWRITE:
+					assertTrue(report.isSuccessful());
+					assertEquals(3, report.getFiles());
+					assertEquals(15, report.getBytes());
+					assertEquals(0, report.getSkipped());
+					assertEquals("new a", read(ResourceUtils.resolve(target, "tree/a.txt")));
+				break;
+			}
+			assertEquals(0, report.getDeduplicated());
+		}
+	}
+
+	public void testCopierRetries() throws IOException {
+		for (int retries = 0; retries < 3; retries++) {
+			VirtualContainer<Resource> source = new VirtualContainer<Resource>(URI.create("source:/"));
+			source.addChild("flaky.txt", new FlakyResource("content".getBytes(), 2).setName("flaky.txt"));
+			MemoryDirectory target = new MemoryDirectory(URI.create("memory:/"));
+			ResourceCopier copier = new ResourceCopier();
+			copier.setConcurrency(1);
+			copier.setRetries(retries);
+			ResourceCopier.CopyReport report = copier.copy(source, target, "tree");
+			// the file created in a failed attempt is not seen as an existing file by the next attempt
+			if (retries < 2) {
+				assertFalse(report.isSuccessful());
+				assertEquals("Transient failure", report.getFailures().get("tree/flaky.txt").getMessage());
+				assertEquals(0, report.getFiles());
+			}
+			else {
+				assertTrue(report.isSuccessful());
+				assertEquals(1, report.getFiles());
+				assertEquals(7, report.getBytes());
+				assertEquals("content", read(ResourceUtils.resolve(target, "tree/flaky.txt")));
+			}
+		}
+	}
+
+	public void testCopierListener() throws IOException {
+		VirtualContainer<Resource> source = copySource();
+		source.addChild("broken.txt", new FlakyResource(new byte[0], Integer.MAX_VALUE).setName("broken.txt"));
+		MemoryDirectory target = new MemoryDirectory(URI.create("memory:/"));
+		write(ResourceUtils.touch(target, "tree/a.txt"), "old a");
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		ResourceCopier copier = new ResourceCopier();
+		copier.setConcurrency(2);
+		copier.setOverwritePolicy(ResourceCopier.OverwritePolicy.SKIP);
+		copier.setListener(new ResourceCopier.CopyListener() {
+			@Override
+			public void copied(String path, long bytes) {
+				events.add("copied " + path + " " + bytes);
+			}
+			@Override
+			public void skipped(String path) {
+				events.add("skipped " + path);
+			}
+			@Override
+			public void failed(String path, Exception exception) {
+				events.add("failed " + path + " " + exception.getMessage());
+			}
+		});
+		ResourceCopier.CopyReport report = copier.copy(source, target, "tree");
+		List<String> sorted = new ArrayList<String>(events);
+		Collections.sort(sorted);
+		assertEquals(Arrays.asList("copied tree/b.txt 5", "copied tree/dir/c.txt 5", "failed tree/broken.txt Transient failure", "skipped tree/a.txt"), sorted);
+		assertEquals("Copied 2 files (10 bytes), deduplicated 0, skipped 1, failed 1", report.toString());
+	}
+
+	// fails the given amount of times before it can be read
+	private static class FlakyResource extends ReadableByteResource {
+		private AtomicInteger failures;
+
+		public FlakyResource(byte [] bytes, int failures) {
+			super(bytes);
+			this.failures = new AtomicInteger(failures);
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			if (failures.getAndDecrement() > 0) {
+				throw new IOException("Transient failure");
+			}
+			return super.getReadable();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.resources.api.Archive;
+import be.nabu.libs.resources.api.ArchiveResolver;
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.ResourceResolver;
+import junit.framework.TestCase;
+
+public class TestResourceFactory extends TestCase {
+
+	// a file whose "content" is a tree, archives simply expose that tree
+	private static class MockFile implements FiniteResource {
+		private String name;
+		private ResourceContainer<?> parent;
+		private VirtualContainer<Resource> contents = new VirtualContainer<Resource>(URI.create("archive:/"));
+
+		public MockFile(ResourceContainer<?> parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/octet-stream";
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return parent;
+		}
+
+		@Override
+		public long getSize() {
+			return 1;
+		}
+	}
+
+	private static class MockArchive implements Archive<Resource> {
+		private MockFile source;
+
+		@Override
+		public Resource getSource() {
+			return source;
+		}
+
+		@Override
+		public void setSource(Resource resource) {
+			this.source = (MockFile) resource;
+		}
+
+		@Override
+		public String getName() {
+			return source.getName();
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+
+		@Override
+		public Resource getChild(String name) {
+			return source.contents.getChild(name);
+		}
+
+		@Override
+		public Iterator<Resource> iterator() {
+			return source.contents.iterator();
+		}
+	}
+
+	private static class MockArchiveResolver implements ArchiveResolver {
+		private int instances;
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T extends Resource> Archive<T> newInstance() {
+			instances++;
+			return (Archive<T>) new MockArchive();
+		}
+
+		@Override
+		public List<String> getSupportedContentTypes() {
+			return Arrays.asList("application/zip", "application/java-archive");
+		}
+	}
+
+	private VirtualContainer<Resource> root;
+	private MockArchiveResolver archiveResolver;
+	private ResourceFactory factory;
+	// the archive factory is global, the resolvers we replace are restored afterwards
+	private Map<String, ArchiveResolver> previous = new HashMap<String, ArchiveResolver>();
+
+	private void createFactory(int archiveCacheSize) {
+		root = new VirtualContainer<Resource>(URI.create("mock:/"));
+		archiveResolver = new MockArchiveResolver();
+		for (String contentType : archiveResolver.getSupportedContentTypes()) {
+			previous.put(contentType, ArchiveFactory.getInstance().getResolver(contentType));
+			ArchiveFactory.getInstance().setArchiveResolver(contentType, archiveResolver, true);
+		}
+		factory = new ResourceFactory();
+		// disabled by default
+		assertEquals(0, factory.getArchiveCache().getMaxSize());
+		factory.setArchiveCaching(archiveCacheSize);
+		factory.setSchemeResolver("mock", new ResourceResolver() {
+			@Override
+			public Resource getResource(URI uri, Principal principal) throws IOException {
+				try {
+					return ResourceUtils.resolve(root, uri.getPath());
+				}
+				catch (IOException e) {
+					// we can't look into files
+					return null;
+				}
+			}
+			@Override
+			public List<String> getDefaultSchemes() {
+				return Arrays.asList("mock");
+			}
+		}, true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (archiveResolver != null) {
+			ArchiveFactory.getInstance().removeArchiveResolver(archiveResolver);
+			for (Map.Entry<String, ArchiveResolver> entry : previous.entrySet()) {
+				if (entry.getValue() != null) {
+					ArchiveFactory.getInstance().setArchiveResolver(entry.getKey(), entry.getValue(), true);
+				}
+			}
+		}
+	}
+
+	private static MockFile addFile(VirtualContainer<Resource> parent, String name) {
+		MockFile file = new MockFile(parent, name);
+		parent.addChild(name, file);
+		return file;
+	}
+
+	private static VirtualContainer<Resource> addDirectory(VirtualContainer<Resource> parent, String name) {
+		VirtualContainer<Resource> directory = new VirtualContainer<Resource>(parent, name);
+		parent.addChild(name, directory);
+		return directory;
+	}
+
+	public void testNestedArchives() throws URISyntaxException, IOException {
+		createFactory(32);
+		// a dotted directory in front of the actual archive
+		VirtualContainer<Resource> data = addDirectory(addDirectory(root, "data"), "v1.2");
+		MockFile bundle = addFile(data, "bundle.zip");
+		MockFile direct = addFile(addDirectory(bundle.contents, "inner"), "file.txt");
+		MockFile library = addFile(addDirectory(bundle.contents, "lib"), "library.jar");
+		MockFile nested = addFile(library.contents, "nested.txt");
+		MockFile deep = addFile(library.contents, "deep.zip");
+		MockFile deepest = addFile(deep.contents, "deepest.txt");
+
+		assertSame(direct, factory.resolve(new URI("mock:/data/v1.2/bundle.zip/inner/file.txt"), null));
+		assertSame(nested, factory.resolve(new URI("mock:/data/v1.2/bundle.zip/lib/library.jar/nested.txt"), null));
+		assertSame(deepest, factory.resolve(new URI("mock:/data/v1.2/bundle.zip/lib/library.jar/deep.zip/deepest.txt"), null));
+		assertNull(factory.resolve(new URI("mock:/data/v1.2/bundle.zip/inner/missing.txt"), null));
+		assertNull(factory.resolve(new URI("mock:/data/v1.2/missing.zip/inner/file.txt"), null));
+		// three archives, each opened once
+		assertEquals(3, archiveResolver.instances);
+	}
+
+	public void testDirectoryWithArchiveExtension() throws URISyntaxException, IOException {
+		createFactory(32);
+		MockFile file = addFile(addDirectory(root, "looks.zip"), "file.txt");
+		assertSame(file, factory.resolve(new URI("mock:/looks.zip/file.txt"), null));
+		assertEquals(0, archiveResolver.instances);
+	}
+
+	public void testArchiveCacheDisabled() throws URISyntaxException, IOException {
+		createFactory(0);
+		MockFile bundle = addFile(root, "bundle.zip");
+		MockFile file = addFile(bundle.contents, "file.txt");
+		assertSame(file, factory.resolve(new URI("mock:/bundle.zip/file.txt"), null));
+		assertSame(file, factory.resolve(new URI("mock:/bundle.zip/file.txt"), null));
+		assertEquals(2, archiveResolver.instances);
+	}
+}
@@ -0,0 +1,70 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceFilter;
+
+public class TestResourceFind extends ResourceTestCase {
+
+	public void testParallelFind() {
+		VirtualContainer<Resource> root = tree(4, 4);
+		ResourceFilter filter = new ResourceFilter() {
+			@Override
+			public boolean accept(Resource resource) {
+				return resource.getName().endsWith("1");
+			}
+		};
+		List<Resource> sequential = ResourceUtils.find(root, filter, true);
+		assertEquals(1 + 4 + 16 + 64, sequential.size());
+		assertEquals(sequential, ResourceUtils.find(root, filter, -1, 4));
+		// only the first two levels
+		assertEquals(1 + 4, ResourceUtils.find(root, filter, 2, 4).size());
+	}
+
+	public void testLazyFind() {
+		VirtualContainer<Resource> root = tree(4, 4);
+		ResourceFilter filter = new ResourceFilter() {
+			@Override
+			public boolean accept(Resource resource) {
+				return resource.getName().endsWith("1");
+			}
+		};
+		assertEquals(ResourceUtils.find(root, filter, true), ResourceUtils.stream(root, filter, true).collect(Collectors.toList()));
+		assertEquals(ResourceUtils.find(root, filter, false), ResourceUtils.stream(root, filter, false).collect(Collectors.toList()));
+		// prune everything below child0
+		ResourceFilter descend = new ResourceFilter() {
+			@Override
+			public boolean accept(Resource resource) {
+				return !resource.getName().equals("child0");
+			}
+		};
+		assertEquals(4 + 3 * (4 + 3 * (4 + 3 * 4)), ResourceUtils.stream(root, null, descend, -1, false).count());
+		assertEquals(4 + 16, ResourceUtils.stream(root, null, null, 2, false).count());
+	}
+
+	public void testLazyFindIgnore() {
+		VirtualContainer<Resource> root = tree(2, 3);
+		root.getIgnoreRules().add("child0/");
+		// only child1 and its subtree remain
+		assertEquals(1 + 2 + 4, ResourceUtils.stream(root, null, null, -1, true).count());
+	}
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.Principal;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.features.CacheableResource;
+import junit.framework.TestCase;
+
+public class TestResourceResolutionCache extends TestCase {
+
+	private static class MockResource implements CacheableResource {
+		private boolean caching = true;
+		private int resets;
+
+		@Override
+		public String getContentType() {
+			return "text/plain";
+		}
+
+		@Override
+		public String getName() {
+			return "mock";
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+
+		@Override
+		public void resetCache() throws IOException {
+			resets++;
+		}
+
+		@Override
+		public void setCaching(boolean caching) {
+			this.caching = caching;
+		}
+
+		@Override
+		public boolean isCaching() {
+			return caching;
+		}
+	}
+
+	private static Principal principal(final String name) {
+		return new Principal() {
+			@Override
+			public String getName() {
+				return name;
+			}
+		};
+	}
+
+	public void testHitAndMiss() throws URISyntaxException {
+		ResourceResolutionCache cache = new ResourceResolutionCache(10, 0);
+		Resource resource = new MockResource();
+		URI uri = new URI("file:/this/is/a/file.txt");
+		assertNull(cache.get(uri, null));
+		cache.put(uri, null, resource);
+		assertSame(resource, cache.get(uri, null));
+		// the key is normalized
+		assertSame(resource, cache.get(new URI("file:/this/is/./a/file.txt"), null));
+		// but principal bound
+		assertNull(cache.get(uri, principal("someone")));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testSizeEviction() throws URISyntaxException {
+		ResourceResolutionCache cache = new ResourceResolutionCache(2, 0);
+		cache.put(new URI("file:/a"), null, new MockResource());
+		cache.put(new URI("file:/b"), null, new MockResource());
+		// touch a so b is the least recently used
+		assertNotNull(cache.get(new URI("file:/a"), null));
+		cache.put(new URI("file:/c"), null, new MockResource());
+		assertEquals(2, cache.size());
+		assertNull(cache.get(new URI("file:/b"), null));
+		assertNotNull(cache.get(new URI("file:/a"), null));
+		assertEquals(1, cache.getEvictions());
+	}
+
+	public void testExpiry() throws URISyntaxException, InterruptedException {
+		ResourceResolutionCache cache = new ResourceResolutionCache(10, 1);
+		cache.put(new URI("file:/a"), null, new MockResource());
+		Thread.sleep(10);
+		assertNull(cache.get(new URI("file:/a"), null));
+	}
+
+	public void testInvalidation() throws URISyntaxException, IOException {
+		ResourceResolutionCache cache = new ResourceResolutionCache(10, 0);
+		MockResource folder = new MockResource();
+		MockResource child = new MockResource();
+		MockResource sibling = new MockResource();
+		cache.put(new URI("file:/folder"), null, folder);
+		cache.put(new URI("file:/folder/child"), principal("someone"), child);
+		cache.put(new URI("file:/folder2"), null, sibling);
+		cache.invalidatePrefix(new URI("file:/folder"));
+		assertEquals(1, cache.size());
+		assertEquals(1, folder.resets);
+		assertEquals(1, child.resets);
+		assertEquals(0, sibling.resets);
+		cache.invalidate(new URI("file:/folder2"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testCachingDisabledOnResource() throws URISyntaxException {
+		ResourceResolutionCache cache = new ResourceResolutionCache(10, 0);
+		MockResource resource = new MockResource();
+		resource.setCaching(false);
+		cache.put(new URI("file:/a"), null, resource);
+		assertEquals(0, cache.size());
+	}
+}
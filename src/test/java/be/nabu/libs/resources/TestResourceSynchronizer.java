@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceProperties;
+import be.nabu.libs.resources.api.features.PropertiesContainer;
+import be.nabu.libs.resources.impl.ResourcePropertiesImpl;
+
+public class TestResourceSynchronizer extends ResourceTestCase {
+
+	public void testSync() throws IOException {
+		MemoryDirectory source = new MemoryDirectory(URI.create("source:/"));
+		write(source.create("a.txt", "text/plain"), "one");
+		write(ResourceUtils.touch(source, "dir/b.txt"), "two");
+		write(ResourceUtils.touch(source, "dir/c.txt"), "three");
+		MemoryDirectory target = new MemoryDirectory(URI.create("target:/"));
+
+		ResourceSynchronizer.SyncReport report = ResourceUtils.sync(source, target, true);
+		assertTrue(report.isSuccessful());
+		assertEquals(3, report.getAdded());
+		assertEquals(11, report.getBytes());
+		assertEquals("three", read(ResourceUtils.resolve(target, "dir/c.txt")));
+
+		// nothing has changed
+		report = ResourceUtils.sync(source, target, true);
+		assertEquals(3, report.getUnchanged());
+		assertTrue(report.getChanges().isEmpty());
+
+		// a different size, a newer timestamp and an extraneous file
+		write(ResourceUtils.resolve(source, "dir/b.txt"), "two!");
+		write(ResourceUtils.resolve(source, "dir/c.txt"), "THREE");
+		((MemoryFile) ResourceUtils.resolve(source, "dir/c.txt")).setLastModified(new Date(System.currentTimeMillis() + 60000));
+		write(ResourceUtils.touch(target, "dir/extra/x.txt"), "extra");
+
+		ResourceSynchronizer synchronizer = new ResourceSynchronizer();
+		synchronizer.setDelete(true);
+		synchronizer.setDryRun(true);
+		report = synchronizer.sync(source, target);
+		Map<String, ResourceSynchronizer.ChangeType> expected = new LinkedHashMap<String, ResourceSynchronizer.ChangeType>();
+		expected.put("dir/b.txt", ResourceSynchronizer.ChangeType.UPDATED);
+		expected.put("dir/c.txt", ResourceSynchronizer.ChangeType.UPDATED);
+		expected.put("dir/extra", ResourceSynchronizer.ChangeType.DELETED);
+		assertEquals(expected, report.getChanges());
+		assertEquals("three", read(ResourceUtils.resolve(target, "dir/c.txt")));
+		assertNotNull(ResourceUtils.resolve(target, "dir/extra"));
+
+		synchronizer.setDryRun(false);
+		report = synchronizer.sync(source, target);
+		assertEquals(expected, report.getChanges());
+		assertEquals(1, report.getUnchanged());
+		assertEquals("two!", read(ResourceUtils.resolve(target, "dir/b.txt")));
+		assertEquals("THREE", read(ResourceUtils.resolve(target, "dir/c.txt")));
+		assertNull(ResourceUtils.resolve(target, "dir/extra"));
+		assertEquals("{\"added\":0,\"updated\":2,\"deleted\":1,\"unchanged\":1,\"bytes\":9,\"duration\":" + report.getDuration()
+			+ ",\"changes\":[{\"path\":\"dir/b.txt\",\"type\":\"UPDATED\"},{\"path\":\"dir/c.txt\",\"type\":\"UPDATED\"},{\"path\":\"dir/extra\",\"type\":\"DELETED\"}],\"failures\":[]}", report.toJSON());
+	}
+
+	private static class ListingDirectory extends MemoryDirectory implements PropertiesContainer<Resource> {
+		private int calls;
+
+		public ListingDirectory(URI uri) {
+			super(uri);
+		}
+
+		@Override
+		public List<ResourceProperties> getChildProperties() throws IOException {
+			calls++;
+			List<ResourceProperties> properties = new ArrayList<ResourceProperties>();
+			for (Resource child : this) {
+				ResourcePropertiesImpl listed = (ResourcePropertiesImpl) ResourceUtils.properties(child);
+				// the listing is newer than the files themselves, this shows which one was used
+				listed.setLastModified(new Date(System.currentTimeMillis() + 120000));
+				properties.add(listed);
+			}
+			return properties;
+		}
+	}
+
+	public void testSyncUsesChildProperties() throws IOException {
+		MemoryDirectory source = new MemoryDirectory(URI.create("source:/"));
+		ListingDirectory target = new ListingDirectory(URI.create("target:/"));
+		for (int i = 0; i < 3; i++) {
+			write(source.create("file" + i + ".txt", "text/plain"), "content");
+			write(target.create("file" + i + ".txt", "text/plain"), "content");
+			// according to the files themselves, the source is newer
+			((MemoryFile) source.getChild("file" + i + ".txt")).setLastModified(new Date(System.currentTimeMillis() + 60000));
+		}
+		ResourceSynchronizer.SyncReport report = new ResourceSynchronizer().sync(source, target);
+		assertEquals(1, target.calls);
+		assertEquals(0, report.getUpdated());
+		assertEquals(3, report.getUnchanged());
+	}
+
+	public void testSyncDirectoryBecomesFile() throws IOException {
+		MemoryDirectory source = new MemoryDirectory(URI.create("source:/"));
+		write(source.create("x", "text/plain"), "file");
+		MemoryDirectory target = new MemoryDirectory(URI.create("target:/"));
+		write(ResourceUtils.touch(target, "x/y.txt"), "nested");
+
+		ResourceSynchronizer synchronizer = new ResourceSynchronizer();
+		for (boolean dryRun : new boolean[] { true, false }) {
+			synchronizer.setDryRun(dryRun);
+			ResourceSynchronizer.SyncReport report = synchronizer.sync(source, target);
+			assertTrue(report.isSuccessful());
+			// a single change for the path
+			assertEquals(Collections.singletonMap("x", ResourceSynchronizer.ChangeType.UPDATED), report.getChanges());
+			assertEquals(1, report.getUpdated());
+			assertEquals(0, report.getAdded());
+			assertEquals(0, report.getDeleted());
+		}
+		assertEquals("file", read(target.getChild("x")));
+	}
+
+	public void testSyncFileBecomesDirectory() throws IOException {
+		MemoryDirectory source = new MemoryDirectory(URI.create("source:/"));
+		write(ResourceUtils.touch(source, "x/y.txt"), "nested");
+		MemoryDirectory target = new MemoryDirectory(URI.create("target:/"));
+		write(target.create("x", "text/plain"), "file");
+
+		ResourceSynchronizer synchronizer = new ResourceSynchronizer();
+		synchronizer.setDelete(true);
+		for (boolean dryRun : new boolean[] { true, false }) {
+			synchronizer.setDryRun(dryRun);
+			ResourceSynchronizer.SyncReport report = synchronizer.sync(source, target);
+			assertTrue(report.isSuccessful());
+			Map<String, ResourceSynchronizer.ChangeType> expected = new LinkedHashMap<String, ResourceSynchronizer.ChangeType>();
+			expected.put("x", ResourceSynchronizer.ChangeType.UPDATED);
+			expected.put("x/y.txt", ResourceSynchronizer.ChangeType.ADDED);
+			assertEquals(expected, report.getChanges());
+			assertEquals(1, report.getUpdated());
+			assertEquals(1, report.getAdded());
+			assertEquals(0, report.getDeleted());
+		}
+		assertEquals("nested", read(ResourceUtils.resolve(target, "x/y.txt")));
+	}
+}
@@ -0,0 +1,198 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.RenameableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.features.MovableResource;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+public class TestResourceTransfer extends ResourceTestCase {
+
+	private static class TruncatingFile extends ChannelFile {
+		private File source;
+
+		public TruncatingFile(File file, File source) {
+			super(file);
+			this.source = source;
+		}
+
+		@Override
+		public WritableByteChannel getWritableChannel() throws IOException {
+			final WritableByteChannel parent = super.getWritableChannel();
+			// the source is truncated while it is being copied
+			return new WritableByteChannel() {
+				private boolean truncated;
+				@Override
+				public boolean isOpen() {
+					return parent.isOpen();
+				}
+				@Override
+				public void close() throws IOException {
+					parent.close();
+				}
+				@Override
+				public int write(java.nio.ByteBuffer buffer) throws IOException {
+					if (!truncated) {
+						truncated = true;
+						FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.WRITE);
+						try {
+							channel.truncate(10);
+						}
+						finally {
+							channel.close();
+						}
+					}
+					return parent.write(buffer);
+				}
+			};
+		}
+	}
+
+	public void testChannelCopyTruncated() throws IOException {
+		File source = File.createTempFile("source", ".bin");
+		File target = File.createTempFile("target", ".bin");
+		try {
+			byte [] content = new byte[3 * 1024 * 1024];
+			new Random(1).nextBytes(content);
+			Files.write(source.toPath(), content);
+			// the copy stops instead of waiting for data that is no longer there
+			assertTrue(ResourceUtils.copyContent(new ChannelFile(source), new TruncatingFile(target, source)) < content.length);
+		}
+		finally {
+			source.delete();
+			target.delete();
+		}
+	}
+
+	public void testChannelCopy() throws IOException {
+		File source = File.createTempFile("source", ".bin");
+		File target = File.createTempFile("target", ".bin");
+		try {
+			byte [] content = new byte[3 * 1024 * 1024 + 17];
+			new Random(1).nextBytes(content);
+			Files.write(source.toPath(), content);
+			assertEquals(content.length, ResourceUtils.copyContent(new ChannelFile(source), new ChannelFile(target)));
+			assertTrue(Arrays.equals(content, Files.readAllBytes(target.toPath())));
+		}
+		finally {
+			source.delete();
+			target.delete();
+		}
+	}
+
+	private static class MockDirectory extends VirtualContainer<Resource> implements ManageableContainer<Resource> {
+		public MockDirectory(ResourceContainer<?> parent, String name) {
+			super(parent, name);
+		}
+
+		public MockDirectory(URI uri) {
+			super(uri);
+		}
+
+		@Override
+		public Resource create(String name, String contentType) throws IOException {
+			throw new IllegalStateException("Nothing should be created");
+		}
+
+		@Override
+		public void delete(String name) throws IOException {
+			removeChild(name);
+		}
+	}
+
+	// a file that can only be moved natively, any attempt to read it fails
+	private static class MovableFile implements ReadableResource, RenameableResource, MovableResource {
+		private MockDirectory parent;
+		private String name;
+
+		public MovableFile(MockDirectory parent, String name) {
+			this.parent = parent;
+			this.name = name;
+			parent.addChild(name, this);
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/octet-stream";
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return parent;
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			throw new IllegalStateException("No bytes should be copied");
+		}
+
+		@Override
+		public void rename(String name) throws IOException {
+			parent.removeChild(this.name);
+			this.name = name;
+			parent.addChild(name, this);
+		}
+
+		@Override
+		public Resource move(ResourceContainer<?> target, String name) throws IOException {
+			if (!(target instanceof MockDirectory)) {
+				return null;
+			}
+			parent.removeChild(this.name);
+			this.parent = (MockDirectory) target;
+			this.name = name;
+			parent.addChild(name, this);
+			return this;
+		}
+	}
+
+	public void testNativeMove() throws IOException {
+		MockDirectory root = new MockDirectory(URI.create("mock:/"));
+		MockDirectory first = new MockDirectory(root, "first");
+		MockDirectory second = new MockDirectory(root, "second");
+		MovableFile file = new MovableFile(first, "original.txt");
+
+		assertSame(file, ResourceUtils.rename(file, "renamed.txt"));
+		assertNull(first.getChild("original.txt"));
+		assertSame(file, first.getChild("renamed.txt"));
+
+		assertSame(file, ResourceUtils.move(file, second, "moved.txt"));
+		assertNull(first.getChild("renamed.txt"));
+		assertSame(file, second.getChild("moved.txt"));
+	}
+}
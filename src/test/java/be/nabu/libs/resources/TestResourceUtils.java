@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.ResourceFilter;
+import be.nabu.libs.resources.api.ResourceProperties;
+import be.nabu.libs.resources.api.features.PropertiesContainer;
+import be.nabu.libs.resources.impl.ResourcePropertiesImpl;
+
+public class TestResourceUtils extends ResourceTestCase {
+
+	public void testPaths() {
+		VirtualContainer<Resource> root = tree(2, 3);
+		Resource leaf = ResourceUtils.find(root, new ResourceFilter() {
+			@Override
+			public boolean accept(Resource resource) {
+				return ResourceUtils.getPath(resource).equals("/child1/child0/child1");
+			}
+		}, true).get(0);
+		MemoryFile file = new MemoryFile((ResourceContainer<?>) leaf, "file.txt");
+		assertEquals("/child1/child0/child1/file.txt", ResourceUtils.getPath(file));
+		assertEquals("virtual:/child1/child0/child1/file.txt", ResourceUtils.getURI(file).toString());
+		// a resource without a locatable ancestor
+		MemoryFile orphan = new MemoryFile(null, "orphan.txt");
+		assertEquals("/orphan.txt", ResourceUtils.getPath(orphan));
+		assertNull(ResourceUtils.getURI(orphan));
+
+		Map<Resource, String> cache = new HashMap<Resource, String>();
+		assertEquals("/child1/child0/child1/file.txt", ResourceUtils.getPath(file, cache));
+		// all the ancestors are cached
+		assertEquals("/child1/child0", cache.get(leaf.getParent()));
+		assertEquals("/child1/child0/child1/file.txt", ResourceUtils.getPath(file, cache));
+		assertEquals("/child1/child0/child0", ResourceUtils.getPath(((ResourceContainer<?>) leaf.getParent()).getChild("child0"), cache));
+	}
+
+	private static class BulkDirectory extends VirtualContainer<Resource> implements PropertiesContainer<Resource> {
+		private int calls;
+
+		public BulkDirectory(URI uri) {
+			super(uri);
+		}
+
+		@Override
+		public List<ResourceProperties> getChildProperties() throws IOException {
+			calls++;
+			ResourcePropertiesImpl properties = new ResourcePropertiesImpl();
+			properties.setName("bulk.txt");
+			properties.setSize(10l);
+			return Arrays.<ResourceProperties>asList(properties);
+		}
+
+		@Override
+		public Iterator<Resource> iterator() {
+			throw new IllegalStateException("The children should not be listed");
+		}
+	}
+
+	public void testChildProperties() throws IOException {
+		VirtualContainer<Resource> root = tree(3, 1);
+		List<ResourceProperties> properties = ResourceUtils.childProperties(root);
+		assertEquals(3, properties.size());
+		for (ResourceProperties property : properties) {
+			assertTrue(property.isListable());
+			assertEquals(URI.create("virtual:/" + property.getName()), property.getUri());
+		}
+
+		BulkDirectory bulk = new BulkDirectory(URI.create("bulk:/"));
+		properties = ResourceUtils.childProperties(bulk);
+		assertEquals(1, bulk.calls);
+		assertEquals("bulk.txt", properties.get(0).getName());
+		assertEquals(Long.valueOf(10), properties.get(0).getSize());
+	}
+}
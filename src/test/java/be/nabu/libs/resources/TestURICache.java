@@ -0,0 +1,68 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import be.nabu.libs.resources.api.Resource;
+import junit.framework.TestCase;
+
+public class TestURICache extends TestCase {
+
+	public void testCache() throws URISyntaxException {
+		URICache cache = new URICache(2);
+		URI first = cache.get("file:/a");
+		assertSame(first, cache.get("file:/a"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.5, cache.getHitRate(), 0.001);
+		assertTrue(cache.getEstimatedMemory() > 0);
+
+		// the components are not confused with a string
+		URI components = cache.get("file", null, "/a", null, null);
+		assertEquals(first, components);
+		assertNotSame(first, components);
+
+		// the least recently used is evicted
+		cache.get("file:/a");
+		cache.get("file:/b");
+		assertEquals(1, cache.getEvictions());
+		assertSame(first, cache.get("file:/a"));
+		assertEquals(2, cache.getSize());
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getEstimatedMemory());
+	}
+
+	public void testChildren() {
+		URICache cache = new URICache(100);
+		URIUtils.setURICache(cache);
+		try {
+			VirtualContainer<Resource> root = new VirtualContainer<Resource>(URI.create("virtual:/"));
+			VirtualContainer<Resource> first = new VirtualContainer<Resource>(root, "child");
+			VirtualContainer<Resource> second = new VirtualContainer<Resource>(root, "child");
+			assertSame(first.getUri(), second.getUri());
+			assertEquals(1, cache.getHits());
+		}
+		finally {
+			URIUtils.setURICache(null);
+		}
+	}
+}
@@ -19,6 +19,10 @@ package be.nabu.libs.resources;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import be.nabu.libs.resources.URIUtils;
 import junit.framework.TestCase;
@@ -70,4 +74,131 @@ public class TestURIUtils extends TestCase {
 		assertEquals("http://www.google.com", URIUtils.buildUri("http", null, null, "www.google.com", null, null, null, null).toString());
 		assertEquals("http://www.google.com:80/check/this?q=test", URIUtils.buildUri("http", null, null, "www.google.com", 80, "/check/this", "q=test", null).toString());
 	}
+	
+	public void testSlashes() throws URISyntaxException {
+		assertEquals(new URI("file:/this/is"), URIUtils.getParent(new URI("file:/this//is///a/")));
+		assertEquals(new URI("file:/"), URIUtils.getParent(new URI("file://///a//")));
+		assertNull(URIUtils.getParent(new URI("file:////")));
+		assertEquals("a", URIUtils.getName(new URI("file:/this//is///a//")));
+		assertNull(URIUtils.getName(new URI("file:///")));
+		assertEquals(new URI("file:/this/is/a/file.txt"), URIUtils.getChild(new URI("file:/this//is/a"), "//file.txt"));
+		assertEquals(new URI("file:/file.txt"), URIUtils.getChild(new URI("file:/"), "file.txt"));
+		// relative paths
+		assertEquals("relative", URIUtils.getName(new URI("relative")));
+		assertEquals(new URI("relative"), URIUtils.getParent(new URI("relative")));
+		assertEquals(new URI("relative"), URIUtils.getParent(new URI("relative/path")));
+	}
+	
+	public void testNested() throws URISyntaxException {
+		URI uri = new URI("zip:file:/this/is/a.zip");
+		assertEquals("a.zip", URIUtils.getName(uri));
+		assertEquals(new URI("zip:file:/this/is"), URIUtils.getParent(uri));
+	}
+	
+	// the original implementations which replaced one character at a time
+	private static String legacyEncodeURI(String uri, boolean includeEncoded) {
+		uri = includeEncoded ? uri.replace("%", "%25") : uri.replaceAll("%(?![0-9A-F]{2})", "%25");
+		return uri.replace(" ", "%20").replace("{", "%7B").replace("}", "%7D").replace("|", "%7C").replace("^", "%5E").replace("[", "%5B").replace("]", "%5D")
+			.replace("\\", "%5C").replace("`", "%60").replace(">", "%3E").replace("<", "%3C").replace("\"", "%22");
+	}
+	
+	private static String legacyDecodeURI(String uri) {
+		return uri.replace("%20", " ").replace("%7B", "{").replace("%7D", "}").replace("%7C", "|").replace("%5E", "^").replace("%5B", "[").replace("%5D", "]")
+			.replace("%25", "%").replace("%3E", ">").replace("%3C", "<").replace("%22", "\"");
+	}
+	
+	private static String legacyEncodeURIComponent(String uriComponent, boolean includeEncoded) {
+		return legacyEncodeURI(uriComponent, includeEncoded).replace("/", "%2F").replace(":", "%3A").replace("?", "%3F").replace("&", "%26")
+			.replace("+", "%2B").replace("=", "%3D").replace("#", "%23").replace("@", "%40");
+	}
+	
+	private static String legacyDecodeURIComponent(String uriComponent) {
+		return legacyDecodeURI(uriComponent.replace("%2F", "/").replace("%3A", ":").replace("%3F", "?").replace("%26", "&")
+			.replace("%2B", "+").replace("%3D", "=").replace("%23", "#").replace("%40", "@"));
+	}
+	
+	public void testEncodingCompatibility() {
+		String alphabet = "%%%2253ECF07BDAa/:?&+=#@ {}|^[]\\`><\"\u00e9x";
+		Random random = new Random(1);
+		for (int i = 0; i < 200000; i++) {
+			StringBuilder builder = new StringBuilder();
+			int length = random.nextInt(12);
+			for (int j = 0; j < length; j++) {
+				builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			String value = builder.toString();
+			assertEquals(value, legacyEncodeURI(value, true), URIUtils.encodeURI(value, true));
+			assertEquals(value, legacyEncodeURI(value, false), URIUtils.encodeURI(value, false));
+			assertEquals(value, legacyEncodeURIComponent(value, true), URIUtils.encodeURIComponent(value, true));
+			assertEquals(value, legacyEncodeURIComponent(value, false), URIUtils.encodeURIComponent(value, false));
+			assertEquals(value, legacyDecodeURI(value), URIUtils.decodeURI(value));
+			assertEquals(value, legacyDecodeURIComponent(value), URIUtils.decodeURIComponent(value));
+		}
+		// the double decoding of the original implementation is retained
+		assertEquals(">", URIUtils.decodeURI("%253E"));
+		assertEquals("%2F", URIUtils.decodeURIComponent("%252F"));
+		assertNull(URIUtils.encodeURI(null));
+		assertNull(URIUtils.decodeURIComponent(null));
+	}
+	
+	public void testNormalize() {
+		assertEquals("/a/c", URIUtils.normalize("/a/b/../c"));
+		assertEquals("/a/c/", URIUtils.normalize("//a/./b/..//c/"));
+		assertEquals("/c", URIUtils.normalize("/a/b/../../c"));
+		assertEquals("", URIUtils.normalize("/a/.."));
+		assertEquals("/", URIUtils.normalize("/a/../"));
+		assertEquals("a/c", URIUtils.normalize("a/b/../c"));
+		assertEquals("../a", URIUtils.normalize("../a"));
+		try {
+			URIUtils.normalize("/a/../../b");
+			fail("The path escapes the root");
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("Can not resolve relative path: /../b", e.getMessage());
+		}
+		try {
+			URIUtils.normalize("a/../b");
+			fail("The first segment of a relative path can not be removed");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testNormalizeDeepPath() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			builder.append("/segment").append(i).append("/.");
+		}
+		for (int i = 0; i < 9999; i++) {
+			builder.append("/..");
+		}
+		assertEquals("/segment0", URIUtils.normalize(builder.toString()));
+	}
+	
+	public void testQueryParameters() throws URISyntaxException {
+		URI uri = new URI("http://example.com/path?a=1&b=some%20value&a=2&flag&c=%20spaced%20&d=x+y&");
+		QueryParameters parameters = URIUtils.getQueryParameters(uri);
+		assertEquals("1", parameters.getFirst("a"));
+		assertEquals(Arrays.asList("1", "2"), parameters.getAll("a"));
+		assertEquals("some value", parameters.getFirst("b"));
+		// trimming happens before decoding
+		assertEquals(" spaced ", parameters.getFirst("c"));
+		assertEquals("x y", parameters.getFirst("d"));
+		assertTrue(parameters.contains("flag"));
+		assertNull(parameters.getFirst("flag"));
+		assertFalse(parameters.contains("missing"));
+		
+		Map<String, List<String>> properties = URIUtils.getQueryProperties(uri);
+		assertEquals(5, properties.size());
+		assertEquals(Arrays.asList("1", "2"), properties.get("a"));
+		assertTrue(properties.get("flag").isEmpty());
+		
+		// whitespace around the parameters is ignored
+		assertEquals("spaced", new QueryParameters("a=1 & c = spaced & ").getFirst("c"));
+		assertTrue(URIUtils.getQueryProperties(new URI("http://example.com/path")).isEmpty());
+		// an empty query is a single empty parameter
+		assertEquals(1, URIUtils.getQueryProperties(new URI("http://example.com/path?")).size());
+		assertTrue(URIUtils.getQueryProperties(new URI("http://example.com/path?&")).isEmpty());
+	}
 }
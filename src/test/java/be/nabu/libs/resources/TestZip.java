@@ -0,0 +1,323 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+public class TestZip extends ResourceTestCase {
+
+	private static VirtualContainer<Resource> files(int amount) {
+		VirtualContainer<Resource> root = new VirtualContainer<Resource>(URI.create("virtual:/"));
+		VirtualContainer<Resource> directory = new VirtualContainer<Resource>(root, "directory");
+		root.addChild(directory.getName(), directory);
+		Random random = new Random(1);
+		for (int i = 0; i < amount; i++) {
+			byte [] content = new byte[random.nextInt(50000)];
+			// half random, half very compressible
+			if (i % 2 == 0) {
+				random.nextBytes(content);
+			}
+			String name = i % 5 == 0 ? "image" + i + ".png" : "file" + i + ".txt";
+			(i % 3 == 0 ? root : directory).addChild(name, new ReadableByteResource(content).setName(name));
+		}
+		return root;
+	}
+
+	private static Map<String, byte[]> unzipToMap(byte [] zip) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip));
+		ZipEntry entry;
+		while ((entry = input.getNextEntry()) != null) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte [] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				output.write(buffer, 0, read);
+			}
+			entries.put(entry.getName() + (entry.getName().endsWith(".png") ? ":" + entry.getMethod() : ""), output.toByteArray());
+		}
+		return entries;
+	}
+
+	public void testParallelZip() throws IOException {
+		VirtualContainer<Resource> root = files(200);
+
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(serial);
+		ResourceUtils.zip(root, zip, false);
+		zip.close();
+
+		ParallelZipWriter writer = new ParallelZipWriter();
+		writer.setConcurrency(4);
+		// force some of the entries to be spilled to disk
+		writer.setSpillThreshold(20000);
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		writer.zip(root, parallel, false);
+
+		Map<String, byte[]> expected = unzipToMap(serial.toByteArray());
+		Map<String, byte[]> actual = unzipToMap(parallel.toByteArray());
+		assertEquals(200, actual.size());
+		Iterator<String> expectedNames = expected.keySet().iterator();
+		for (Map.Entry<String, byte[]> entry : actual.entrySet()) {
+			String name = entry.getKey();
+			// the images are stored rather than deflated
+			if (name.contains(".png")) {
+				assertTrue(name.endsWith(":" + ZipEntry.STORED));
+				name = name.substring(0, name.lastIndexOf(':'));
+			}
+			// same order, same content
+			assertEquals(expectedNames.next().replaceAll(":[0-9]+$", ""), name);
+			assertTrue(Arrays.equals(expected.get(name.endsWith(".png") ? name + ":" + ZipEntry.DEFLATED : name), entry.getValue()));
+		}
+	}
+
+	public void testParallelZipFailureCleansUp() throws IOException, InterruptedException {
+		VirtualContainer<Resource> root = new VirtualContainer<Resource>(URI.create("virtual:/"));
+		// the names are chosen so the broken entry is iterated (and written) before the slow ones
+		root.addChild("broken.txt", new ReadableByteResource(new byte[0]) {
+			@Override
+			public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+				throw new IOException("broken");
+			}
+		}.setName("broken.txt"));
+		for (int i = 0; i < 3; i++) {
+			root.addChild("slow" + i + ".txt", new SlowResource(new byte[1000]).setName("slow" + i + ".txt"));
+		}
+		ParallelZipWriter writer = new ParallelZipWriter();
+		writer.setConcurrency(4);
+		// every entry is spilled to disk
+		writer.setSpillThreshold(0);
+		int before = spilled();
+		try {
+			writer.zip(root, new ByteArrayOutputStream(), false);
+			fail("The broken entry should fail the zip");
+		}
+		catch (IOException e) {
+			assertEquals("broken", e.getMessage());
+		}
+		// the slow entries were still being compressed when the zip failed, they should not leave anything behind
+		Thread.sleep(500);
+		assertEquals(before, spilled());
+	}
+
+	private static int spilled() {
+		File [] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		int amount = 0;
+		for (File file : files) {
+			if (file.getName().startsWith("zip") && file.getName().endsWith(".entry")) {
+				amount++;
+			}
+		}
+		return amount;
+	}
+
+	private static class SlowResource extends ReadableByteResource {
+		public SlowResource(byte [] bytes) {
+			super(bytes);
+		}
+
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			// ignores interruption so it keeps running after the writer gives up
+			long until = System.currentTimeMillis() + 200;
+			boolean interrupted = false;
+			while (System.currentTimeMillis() < until) {
+				try {
+					Thread.sleep(Math.max(1, until - System.currentTimeMillis()));
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return super.getReadable();
+		}
+	}
+
+	public void testParallelUnzip() throws IOException {
+		VirtualContainer<Resource> root = files(200);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(output);
+		ResourceUtils.zip(root, zip, false);
+		zip.close();
+		Map<String, byte[]> expected = unzipToMap(output.toByteArray());
+
+		MemoryDirectory target = new MemoryDirectory(URI.create("memory:/"));
+		ResourceExtractor extractor = new ResourceExtractor();
+		extractor.setConcurrency(4);
+		// some of the entries are written by the reading thread
+		extractor.setBufferThreshold(20000);
+		ResourceExtractor.ExtractReport report = extractor.extract(new ZipInputStream(new ByteArrayInputStream(output.toByteArray())), target);
+		assertTrue(report.isSuccessful());
+		assertEquals(200, report.getFiles());
+		for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+			String name = entry.getKey().replaceAll(":[0-9]+$", "");
+			assertEquals(entry.getValue().length, IOUtils.toBytes(((ReadableResource) ResourceUtils.resolve(target, name)).getReadable()).length);
+			assertTrue(Arrays.equals(entry.getValue(), IOUtils.toBytes(((ReadableResource) ResourceUtils.resolve(target, name)).getReadable())));
+		}
+	}
+
+	public void testZipSlip() throws IOException {
+		assertEquals("a/c", ResourceExtractor.getSafePath("/a/./b/../c"));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(output);
+		zip.putNextEntry(new ZipEntry("a/../../evil.txt"));
+		zip.write(new byte[] { 1, 2, 3 });
+		zip.close();
+		MemoryDirectory root = new MemoryDirectory(URI.create("memory:/"));
+		MemoryDirectory target = (MemoryDirectory) root.create("target", Resource.CONTENT_TYPE_DIRECTORY);
+		try {
+			ResourceUtils.unzip(new ZipInputStream(new ByteArrayInputStream(output.toByteArray())), target);
+			fail("The entry should be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		try {
+			new ResourceExtractor().extract(new ZipInputStream(new ByteArrayInputStream(output.toByteArray())), target);
+			fail("The entry should be rejected");
+		}
+		catch (IOException e) {
+			// expected
+		}
+		assertNull(root.getChild("evil.txt"));
+	}
+
+	public void testZipIndexCrc() throws IOException {
+		byte [] content = "the content of the stored entry".getBytes("UTF-8");
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(output);
+		ZipEntry stored = new ZipEntry("stored.txt");
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(content.length);
+		stored.setCrc(crc.getValue());
+		zip.putNextEntry(stored);
+		zip.write(content);
+		zip.close();
+		byte [] bytes = output.toByteArray();
+		// corrupt the data without touching the headers
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == 'h' && bytes[i + 1] == 'e' && bytes[i + 2] == ' ') {
+				bytes[i] = 'H';
+				break;
+			}
+		}
+		File file = File.createTempFile("corrupt", ".zip");
+		try {
+			Files.write(file.toPath(), bytes);
+			ZipIndex index = new ZipIndex(new ChannelFile(file).getSeekableChannel());
+			try {
+				InputStream input = index.getInputStream(index.getEntries().get(0));
+				try {
+					while (input.read() >= 0);
+					fail("The corrupted entry should be rejected");
+				}
+				catch (ZipException e) {
+					// expected
+				}
+				finally {
+					input.close();
+				}
+			}
+			finally {
+				index.close();
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	public void testSelectiveUnzip() throws IOException {
+		VirtualContainer<Resource> root = files(100);
+		File file = File.createTempFile("selective", ".zip");
+		try {
+			ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file.toPath()));
+			ResourceUtils.zip(root, zip, false);
+			zip.close();
+
+			// the central directory is used
+			MemoryDirectory seekable = new MemoryDirectory(URI.create("memory:/"));
+			ResourceUtils.unzip(new ChannelFile(file), seekable, "directory/file1*.txt");
+			List<String> extracted = paths(seekable);
+			assertEquals(Arrays.asList("/directory/file1.txt", "/directory/file11.txt", "/directory/file13.txt", "/directory/file14.txt", "/directory/file16.txt", "/directory/file17.txt", "/directory/file19.txt"), extracted);
+			for (String path : extracted) {
+				assertTrue(Arrays.equals(
+					IOUtils.toBytes(((ReadableResource) ResourceUtils.resolve(root, path.substring(1))).getReadable()),
+					IOUtils.toBytes(((ReadableResource) ResourceUtils.resolve(seekable, path.substring(1))).getReadable())
+				));
+			}
+
+			// the zip is scanned, the result should be the same
+			MemoryDirectory streamed = new MemoryDirectory(URI.create("memory:/"));
+			ResourceUtils.unzip(new ReadableByteResource(Files.readAllBytes(file.toPath())), streamed, "directory/file1*.txt");
+			assertEquals(extracted, paths(streamed));
+
+			// the stored entries written by the parallel writer can be read as well
+			ParallelZipWriter writer = new ParallelZipWriter();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			writer.zip(root, output, false);
+			Files.write(file.toPath(), output.toByteArray());
+			ZipIndex index = new ZipIndex(new ChannelFile(file).getSeekableChannel());
+			try {
+				assertEquals(100, index.getEntries().size());
+				MemoryDirectory all = new MemoryDirectory(URI.create("memory:/"));
+				assertEquals(100, index.extract(all, null));
+				for (ZipIndex.Entry entry : index.getEntries()) {
+					assertTrue(Arrays.equals(
+						IOUtils.toBytes(((ReadableResource) ResourceUtils.resolve(root, entry.getName())).getReadable()),
+						IOUtils.toBytes(((ReadableResource) ResourceUtils.resolve(all, entry.getName())).getReadable())
+					));
+				}
+			}
+			finally {
+				index.close();
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+}
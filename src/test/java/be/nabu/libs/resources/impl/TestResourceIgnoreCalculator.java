@@ -134,4 +134,34 @@ public class TestResourceIgnoreCalculator extends TestCase {
     	assertFalse(ResourceIgnoreCalculator.accept(root, "root.log"));
     	assertTrue(ResourceIgnoreCalculator.accept(sub, "root.log"));
     }
+    
+    public void testGlobPatterns() {
+    	MockResourceContainer root = new MockResourceContainer("root", null, "**/notes.txt", "data?.log", "data[1-2].txt", "\\#config.txt", "*.{tmp,bak}");
+    	MockResourceContainer sub = new MockResourceContainer("sub", root);
+    	
+    	assertFalse(ResourceIgnoreCalculator.accept(sub, "notes.txt"));
+    	assertFalse(ResourceIgnoreCalculator.accept(root, "data1.log"));
+    	assertTrue(ResourceIgnoreCalculator.accept(root, "data10.log"));
+    	assertFalse(ResourceIgnoreCalculator.accept(sub, "data2.txt"));
+    	assertTrue(ResourceIgnoreCalculator.accept(sub, "data3.txt"));
+    	assertFalse(ResourceIgnoreCalculator.accept(root, "#config.txt"));
+    	assertFalse(ResourceIgnoreCalculator.accept(sub, "file.bak"));
+    	assertTrue(ResourceIgnoreCalculator.accept(sub, "file.txt"));
+    }
+    
+    public void testAnchoredDirectory() {
+    	MockResourceContainer root = new MockResourceContainer("root", null, "/build/");
+    	MockResourceContainer sub = new MockResourceContainer("sub", root);
+    	
+    	assertFalse(ResourceIgnoreCalculator.accept(root, "build"));
+    	assertTrue(ResourceIgnoreCalculator.accept(sub, "build"));
+    }
+    
+    public void testChangedRules() {
+    	MockResourceContainer root = new MockResourceContainer("root", null, "*.log");
+    	assertFalse(ResourceIgnoreCalculator.accept(root, "test.log"));
+    	root.getIgnoreRules().set(0, "*.txt");
+    	assertTrue(ResourceIgnoreCalculator.accept(root, "test.log"));
+    	assertFalse(ResourceIgnoreCalculator.accept(root, "test.txt"));
+    }
 }